@@ -0,0 +1,123 @@
+package edu.pdx.imagej.deconv;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+// SIMD versions of the Complex_Kernels loops, built only by the "vector" profile (see pom.xml) and picked up at runtime by
+// Complex_Kernels.create(). Each vector holds LENGTH/2 interleaved voxels; shuffles line up the real and imaginary parts
+// so whole vectors can be multiplied at once. Lanes are computed in single precision, and any chunk that produces a
+// non-finite lane is redone by the scalar double precision kernel, so saturation works (and is counted) as it does there.
+public class Vector_Kernels extends Complex_Kernels {
+	
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+	private static final int LENGTH = SPECIES.length();
+	
+	// {re, im} -> {im, re}, {re, re} and {im, im} for every voxel in a vector
+	private static final VectorShuffle<Float> SWAP = VectorShuffle.fromOp(SPECIES, i -> i ^ 1);
+	private static final VectorShuffle<Float> DUP_RE = VectorShuffle.fromOp(SPECIES, i -> i & ~1);
+	private static final VectorShuffle<Float> DUP_IM = VectorShuffle.fromOp(SPECIES, i -> i | 1);
+	private static final VectorMask<Float> IM_LANES = VectorMask.fromLong(SPECIES, 0xAAAAAAAAAAAAAAAAL);
+	
+	// {-1, 1, -1, 1, ...} and {1, -1, 1, -1, ...}
+	private static final FloatVector SIGNS = FloatVector.broadcast(SPECIES, 1f).blend(-1f, IM_LANES.not());
+	private static final FloatVector CONJ_SIGNS = SIGNS.neg();
+	
+	public Vector_Kernels() {
+		// with less than two voxels per vector the shuffles cost more than they save
+		if (LENGTH < 4)
+			throw new UnsupportedOperationException("Vector length " + LENGTH + " is too short for the complex kernels.");
+	}
+	
+	@Override
+	protected long multiply(float[] a, float[] b, float[] dest, int from, int to) {
+		long count = 0;
+		int i = from;
+		for (; i <= to - LENGTH; i += LENGTH) {
+			FloatVector va = FloatVector.fromArray(SPECIES, a, i);
+			FloatVector vb = FloatVector.fromArray(SPECIES, b, i);
+			
+			// {c*e, c*f} + {-d*f, d*e}
+			FloatVector result = va.rearrange(DUP_IM).mul(vb.rearrange(SWAP)).fma(SIGNS, va.rearrange(DUP_RE).mul(vb));
+			if (isFinite(result))
+				result.intoArray(dest, i);
+			else
+				count += super.multiply(a, b, dest, i, i + LENGTH);
+		}
+		
+		return count + super.multiply(a, b, dest, i, to);
+	}
+	
+	@Override
+	protected long conjMultiply(float[] a, float[] b, float[] dest, int from, int to) {
+		long count = 0;
+		int i = from;
+		for (; i <= to - LENGTH; i += LENGTH) {
+			FloatVector va = FloatVector.fromArray(SPECIES, a, i);
+			FloatVector vb = FloatVector.fromArray(SPECIES, b, i);
+			
+			// {c*e, c*f} + {d*f, -d*e}
+			FloatVector result = va.rearrange(DUP_IM).mul(vb.rearrange(SWAP)).fma(CONJ_SIGNS, va.rearrange(DUP_RE).mul(vb));
+			if (isFinite(result))
+				result.intoArray(dest, i);
+			else
+				count += super.conjMultiply(a, b, dest, i, i + LENGTH);
+		}
+		
+		return count + super.conjMultiply(a, b, dest, i, to);
+	}
+	
+	// the lane-parallel form of Smith's algorithm: scaling the denominator by its larger component s gives
+	// (c + d*i) / (e + f*i) = ((c*e' + d*f') + (d*e' - c*f')*i) / (e*e' + f*f') with e' = e/s, f' = f/s
+	@Override
+	protected long addScalarDivide(float[] a, float[] b, float scalar, float[] dest, int from, int to) {
+		FloatVector shift = FloatVector.broadcast(SPECIES, scalar).blend(0f, IM_LANES);
+		long count = 0;
+		int i = from;
+		for (; i <= to - LENGTH; i += LENGTH) {
+			FloatVector va = FloatVector.fromArray(SPECIES, a, i);
+			FloatVector vb = FloatVector.fromArray(SPECIES, b, i).add(shift);
+			
+			FloatVector e = vb.rearrange(DUP_RE);
+			FloatVector f = vb.rearrange(DUP_IM);
+			FloatVector s = e.abs().max(f.abs());
+			FloatVector eScaled = e.div(s);
+			FloatVector fScaled = f.div(s);
+			FloatVector denom = e.mul(eScaled).add(f.mul(fScaled));
+			
+			// {c*e', d*e'} + {d*f', -c*f'}
+			FloatVector result = va.rearrange(SWAP).mul(fScaled).fma(CONJ_SIGNS, va.mul(eScaled)).div(denom);
+			if (isFinite(result))
+				result.intoArray(dest, i);
+			else
+				count += super.addScalarDivide(a, b, scalar, dest, i, i + LENGTH);
+		}
+		
+		return count + super.addScalarDivide(a, b, scalar, dest, i, to);
+	}
+	
+	@Override
+	protected long absSquared(float[] a, float[] dest, int from, int to) {
+		long count = 0;
+		int i = from;
+		for (; i <= to - LENGTH; i += LENGTH) {
+			FloatVector va = FloatVector.fromArray(SPECIES, a, i);
+			
+			// {c^2, d^2} + {d^2, c^2}, then clear the imaginary lanes
+			FloatVector squares = va.mul(va);
+			FloatVector result = squares.add(squares.rearrange(SWAP)).blend(0f, IM_LANES);
+			if (isFinite(result))
+				result.intoArray(dest, i);
+			else
+				count += super.absSquared(a, dest, i, i + LENGTH);
+		}
+		
+		return count + super.absSquared(a, dest, i, to);
+	}
+	
+	private static boolean isFinite(FloatVector v) {
+		return v.test(VectorOperators.IS_FINITE).allTrue();
+	}
+}
@@ -0,0 +1,187 @@
+package edu.pdx.imagej.deconv;
+
+import java.awt.Color;
+
+import ij.gui.Plot;
+
+// chooses the Wiener beta automatically. Frames are transformed once and only |G|^2 (summed over frames) is kept, then
+// every beta is evaluated with one pass over the spectrum: by Parseval the residual |g - h*x|^2 and the solution norm |x|^2
+// are sums of beta^2 |G|^2 / (|H|^2 + beta)^2 and |H|^2 |G|^2 / (|H|^2 + beta)^2, so no inverse transforms are needed.
+//
+// Beta is picked by generalized cross validation (the minimum of M |r|^2 / trace(I - A)^2, with A the filter's
+// influence |H|^2 / (|H|^2 + beta)) or by the corner of the L-curve (the point of maximum curvature of
+// log |x| against log |r|). Half spectra of real data count their mirrored columns twice.
+public class Beta_Sweep {
+	
+	public static final String GCV = "GCV";
+	public static final String L_CURVE = "L-curve";
+	
+	private final Prepared_PSF psf;
+	private final int spectrumSize;
+	private final int voxels;
+	private final double[] imagePower;
+	private final float[] weights;
+	private int frames;
+	
+	public float[] betas;
+	public float[] gcv;
+	public float[] residuals;
+	public float[] solutionNorms;
+	public float[] curvatures;
+	
+	public Beta_Sweep(Prepared_PSF i_psf) {
+		psf = i_psf;
+		Complex_Volume otf = psf.getOTF();
+		spectrumSize = otf.data.length / 2;
+		voxels = psf.slices * psf.height * psf.width;
+		imagePower = new double[spectrumSize];
+		weights = psf.getColumnWeights();
+	}
+	
+	// add the transform of one (squared, for intensity maps) frame. spectrum must have the shape of the PSF's OTF
+	public synchronized void addFrame(Complex_Volume spectrum) {
+		if (!spectrum.sameShape(psf.getOTF()))
+			throw new IllegalArgumentException("The spectrum does not match the PSF.");
+		
+		// in double, the DC term of intensity data overflows a float over a stack
+		for (int i = 0; i < spectrumSize; i++) {
+			double re = spectrum.data[2*i];
+			double im = spectrum.data[2*i + 1];
+			imagePower[i] += re * re + im * im;
+		}
+		frames++;
+	}
+	
+	// evaluate count betas spaced logarithmically from minBeta to maxBeta
+	public void evaluate(float minBeta, float maxBeta, int count) {
+		float[] values = new float[count];
+		for (int i = 0; i < count; i++)
+			values[i] = count == 1 ? minBeta : (float) (minBeta * Math.pow(maxBeta / minBeta, (double) i / (count - 1)));
+		evaluate(values);
+	}
+	
+	public void evaluate(float[] i_betas) {
+		if (frames == 0)
+			throw new IllegalStateException("No frames were added to the sweep.");
+		
+		betas = i_betas;
+		int count = betas.length;
+		gcv = new float[count];
+		residuals = new float[count];
+		solutionNorms = new float[count];
+		float[] power = psf.getPower().data;
+		int width = psf.getOTF().width;
+		long dataSize = (long) voxels * frames;
+		
+		for (int b = 0; b < count; b++) {
+			double beta = betas[b];
+			double residual = 0;
+			double solution = 0;
+			double trace = 0;
+			for (int i = 0; i < spectrumSize; i++) {
+				double h = power[2*i];
+				double g = imagePower[i];
+				double w = weights[i % width];
+				double d = h + beta;
+				residual += w * g * beta * beta / (d * d);
+				solution += w * g * h / (d * d);
+				trace += w * beta / d;
+			}
+			
+			// the unnormalized forward transform scales sums of squares by the number of voxels
+			residual /= voxels;
+			solution /= voxels;
+			trace *= frames;
+			residuals[b] = (float) Math.sqrt(residual);
+			solutionNorms[b] = (float) Math.sqrt(solution);
+			gcv[b] = (float) (dataSize * residual / (trace * trace));
+		}
+		
+		curvatures = lCurveCurvature();
+	}
+	
+	// beta with the lowest GCV score
+	public float getGCVBeta() {
+		int best = 0;
+		for (int b = 1; b < betas.length; b++)
+			if (gcv[b] < gcv[best])
+				best = b;
+		
+		return betas[best];
+	}
+	
+	// beta at the corner of the L-curve. The end points have no curvature, so with fewer than 3 betas this is the first one
+	public float getLCurveBeta() {
+		int best = 0;
+		for (int b = 1; b < betas.length - 1; b++)
+			if (best == 0 || curvatures[b] > curvatures[best])
+				best = b;
+		
+		return betas[best];
+	}
+	
+	public float getBeta(String method) {
+		return L_CURVE.equals(method) ? getLCurveBeta() : getGCVBeta();
+	}
+	
+	// GCV score against beta, with the chosen beta marked
+	public Plot plotGCV() {
+		Plot plot = new Plot("Beta Sweep (GCV)", "Beta", "GCV");
+		plot.setAxisXLog(true);
+		plot.setAxisYLog(true);
+		plot.addPoints(betas, gcv, Plot.LINE);
+		plot.addPoints(betas, gcv, Plot.CIRCLE);
+		mark(plot, getGCVBeta(), betas, gcv);
+		
+		return plot;
+	}
+	
+	// solution norm against residual norm, one point per beta, with the corner marked
+	public Plot plotLCurve() {
+		Plot plot = new Plot("Beta Sweep (L-curve)", "Residual norm", "Solution norm");
+		plot.setAxisXLog(true);
+		plot.setAxisYLog(true);
+		plot.addPoints(residuals, solutionNorms, Plot.LINE);
+		plot.addPoints(residuals, solutionNorms, Plot.CIRCLE);
+		mark(plot, getLCurveBeta(), residuals, solutionNorms);
+		
+		return plot;
+	}
+	
+	private void mark(Plot plot, float beta, float[] xs, float[] ys) {
+		for (int b = 0; b < betas.length; b++)
+			if (betas[b] == beta) {
+				plot.setColor(Color.RED);
+				plot.addPoints(new float[] {xs[b]}, new float[] {ys[b]}, Plot.BOX);
+				plot.addLabel(0.05, 0.1, "beta = " + Float.toString(beta));
+				plot.setColor(Color.BLACK);
+			}
+	}
+	
+	// signed curvature of (log residual, log solution norm) as a function of log beta, from central differences
+	private float[] lCurveCurvature() {
+		int count = betas.length;
+		float[] ret = new float[count];
+		for (int b = 1; b < count - 1; b++) {
+			double[] x = new double[3];
+			double[] y = new double[3];
+			double[] t = new double[3];
+			for (int j = 0; j < 3; j++) {
+				x[j] = Math.log(residuals[b - 1 + j]);
+				y[j] = Math.log(solutionNorms[b - 1 + j]);
+				t[j] = Math.log(betas[b - 1 + j]);
+			}
+			
+			double h1 = t[1] - t[0];
+			double h2 = t[2] - t[1];
+			double dx = (x[2] - x[0]) / (h1 + h2);
+			double dy = (y[2] - y[0]) / (h1 + h2);
+			double ddx = 2 * (h1 * (x[2] - x[1]) - h2 * (x[1] - x[0])) / (h1 * h2 * (h1 + h2));
+			double ddy = 2 * (h1 * (y[2] - y[1]) - h2 * (y[1] - y[0])) / (h1 * h2 * (h1 + h2));
+			double norm = Math.pow(dx * dx + dy * dy, 1.5);
+			ret[b] = norm > 0 ? (float) ((dx * ddy - dy * ddx) / norm) : 0;
+		}
+		
+		return ret;
+	}
+}
\ No newline at end of file
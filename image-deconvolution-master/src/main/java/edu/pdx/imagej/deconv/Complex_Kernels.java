@@ -0,0 +1,259 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// elementwise complex arithmetic on interleaved {re, im, re, im, ...} data. Every kernel writes into a destination supplied
+// by the caller (which may be one of the inputs), so nothing is allocated per voxel or per call.
+//
+// Results are computed in double precision and stored as floats. A result that does not fit in a float is saturated
+// instead of being recomputed: +-infinity (or anything beyond the float range) is clamped to +-Float.MAX_VALUE and NaN
+// (e.g. 0/0) becomes 0. Every voxel that had to be saturated is counted, so callers can see when their regularization
+// (beta, SNR) is too small rather than silently paying for it.
+//
+// Use create() rather than the constructor to get the fastest implementation available on this JVM.
+public class Complex_Kernels {
+	
+	public enum Operation {
+		MULTIPLY,          // dest = a * b
+		CONJ_MULTIPLY,     // dest = conj(a) * b
+		DIVIDE,            // dest = a / b
+		ADD_SCALAR_DIVIDE, // dest = a / (b + scalar)
+		ABS_SQUARED,       // dest = |a|^2, b is ignored
+		WIENER,            // dest = conj(b) * a / (|b|^2 + scalar), the Wiener filter of a with OTF b
+		ADD,               // dest = a + b
+		SUBTRACT;          // dest = a - b
+		
+		// operation for the names used by Deconvolve_Image_Utils.matrixOperations. Anything unrecognized adds, as it always has
+		public static Operation fromName(String name) {
+			if ("divide".equals(name))
+				return DIVIDE;
+			else if ("multiply".equals(name))
+				return MULTIPLY;
+			else if ("subtract".equals(name))
+				return SUBTRACT;
+			else
+				return ADD;
+		}
+	}
+	
+	private final LongAdder saturated = new LongAdder();
+	
+	// returns the SIMD kernels (Vector_Kernels) when they were compiled in by the "vector" build profile and the
+	// jdk.incubator.vector module is available, otherwise the scalar kernels. -Ddeconv.kernels=scalar forces the latter
+	public static Complex_Kernels create() {
+		if (!"scalar".equals(System.getProperty("deconv.kernels"))) {
+			try {
+				return (Complex_Kernels) Class.forName("edu.pdx.imagej.deconv.Vector_Kernels").getDeclaredConstructor().newInstance();
+			}
+			catch (ReflectiveOperationException | LinkageError ex) {
+				// not built with the profile, module missing, or no usable vector width
+			}
+		}
+		
+		return new Complex_Kernels();
+	}
+	
+	// number of voxels whose result had to be saturated since this object was created or last reset
+	public long getSaturationCount() {
+		return saturated.sum();
+	}
+	
+	public void resetSaturationCount() {
+		saturated.reset();
+	}
+	
+	// apply an operation to whole volumes. b may be null for ABS_SQUARED
+	public void apply(Operation op, Complex_Volume a, Complex_Volume b, float scalar, Complex_Volume dest) {
+		if (!a.sameShape(dest) || (b != null && !a.sameShape(b)))
+			throw new IllegalArgumentException("Complex volumes must have the same dimensions.");
+		
+		apply(op, a.data, b == null ? null : b.data, scalar, dest.data, 0, a.data.length);
+	}
+	
+	public void apply(Operation op, Complex_Volume a, Complex_Volume b, Complex_Volume dest) {
+		apply(op, a, b, 0, dest);
+	}
+	
+	// apply an operation to the interleaved entries [from, to) of the arrays. from and to must be even
+	public void apply(Operation op, float[] a, float[] b, float scalar, float[] dest, int from, int to) {
+		long count = 0;
+		switch (op) {
+			case MULTIPLY:
+				count = multiply(a, b, dest, from, to);
+				break;
+			case CONJ_MULTIPLY:
+				count = conjMultiply(a, b, dest, from, to);
+				break;
+			case DIVIDE:
+				count = addScalarDivide(a, b, 0, dest, from, to);
+				break;
+			case ADD_SCALAR_DIVIDE:
+				count = addScalarDivide(a, b, scalar, dest, from, to);
+				break;
+			case ABS_SQUARED:
+				count = absSquared(a, dest, from, to);
+				break;
+			case WIENER:
+				count = wiener(a, b, scalar, dest, from, to);
+				break;
+			case ADD:
+				count = add(a, b, 1, dest, from, to);
+				break;
+			case SUBTRACT:
+				count = add(a, b, -1, dest, from, to);
+				break;
+		}
+		
+		// one update per call keeps the shared counter out of the inner loops
+		if (count > 0)
+			saturated.add(count);
+	}
+	
+	// each kernel returns the number of voxels it had to saturate
+	protected long multiply(float[] a, float[] b, float[] dest, int from, int to) {
+		long count = 0;
+		for (int i = from; i < to; i += 2) {
+			double c = a[i];
+			double d = a[i + 1];
+			double e = b[i];
+			double f = b[i + 1];
+			double re = c*e - d*f;
+			double im = c*f + d*e;
+			if (!(Math.abs(re) <= Float.MAX_VALUE && Math.abs(im) <= Float.MAX_VALUE)) {
+				re = saturate(re);
+				im = saturate(im);
+				count++;
+			}
+			dest[i] = (float)re;
+			dest[i + 1] = (float)im;
+		}
+		
+		return count;
+	}
+	
+	protected long conjMultiply(float[] a, float[] b, float[] dest, int from, int to) {
+		long count = 0;
+		for (int i = from; i < to; i += 2) {
+			double c = a[i];
+			double d = a[i + 1];
+			double e = b[i];
+			double f = b[i + 1];
+			double re = c*e + d*f;
+			double im = c*f - d*e;
+			if (!(Math.abs(re) <= Float.MAX_VALUE && Math.abs(im) <= Float.MAX_VALUE)) {
+				re = saturate(re);
+				im = saturate(im);
+				count++;
+			}
+			dest[i] = (float)re;
+			dest[i + 1] = (float)im;
+		}
+		
+		return count;
+	}
+	
+	// (c + d*i) / ((e + scalar) + f*i) using Smith's algorithm: dividing through by the larger of the denominator's
+	// components keeps the intermediates near 1, so tiny OTF values neither underflow |denominator|^2 nor overflow
+	protected long addScalarDivide(float[] a, float[] b, float scalar, float[] dest, int from, int to) {
+		long count = 0;
+		for (int i = from; i < to; i += 2) {
+			double c = a[i];
+			double d = a[i + 1];
+			double e = (double)b[i] + scalar;
+			double f = b[i + 1];
+			double re;
+			double im;
+			if (Math.abs(e) >= Math.abs(f)) {
+				double r = f / e;
+				double denom = e + f*r;
+				re = (c + d*r) / denom;
+				im = (d - c*r) / denom;
+			}
+			else {
+				double r = e / f;
+				double denom = e*r + f;
+				re = (c*r + d) / denom;
+				im = (d*r - c) / denom;
+			}
+			if (!(Math.abs(re) <= Float.MAX_VALUE && Math.abs(im) <= Float.MAX_VALUE)) {
+				re = saturate(re);
+				im = saturate(im);
+				count++;
+			}
+			dest[i] = (float)re;
+			dest[i + 1] = (float)im;
+		}
+		
+		return count;
+	}
+	
+	protected long absSquared(float[] a, float[] dest, int from, int to) {
+		long count = 0;
+		for (int i = from; i < to; i += 2) {
+			double c = a[i];
+			double d = a[i + 1];
+			double re = c*c + d*d;
+			if (!(re <= Float.MAX_VALUE)) {
+				re = saturate(re);
+				count++;
+			}
+			dest[i] = (float)re;
+			dest[i + 1] = 0;
+		}
+		
+		return count;
+	}
+	
+	// the filter conj(H) / (|H|^2 + scalar) is built on the fly, for when the scalar changes from frame to frame
+	protected long wiener(float[] a, float[] b, float scalar, float[] dest, int from, int to) {
+		long count = 0;
+		for (int i = from; i < to; i += 2) {
+			double c = a[i];
+			double d = a[i + 1];
+			double e = b[i];
+			double f = b[i + 1];
+			double denom = e*e + f*f + scalar;
+			double re = (c*e + d*f) / denom;
+			double im = (d*e - c*f) / denom;
+			if (!(Math.abs(re) <= Float.MAX_VALUE && Math.abs(im) <= Float.MAX_VALUE)) {
+				re = saturate(re);
+				im = saturate(im);
+				count++;
+			}
+			dest[i] = (float)re;
+			dest[i + 1] = (float)im;
+		}
+		
+		return count;
+	}
+	
+	// a + sign*b
+	protected long add(float[] a, float[] b, int sign, float[] dest, int from, int to) {
+		long count = 0;
+		for (int i = from; i < to; i += 2) {
+			double re = (double)a[i] + sign*(double)b[i];
+			double im = (double)a[i + 1] + sign*(double)b[i + 1];
+			if (!(Math.abs(re) <= Float.MAX_VALUE && Math.abs(im) <= Float.MAX_VALUE)) {
+				re = saturate(re);
+				im = saturate(im);
+				count++;
+			}
+			dest[i] = (float)re;
+			dest[i + 1] = (float)im;
+		}
+		
+		return count;
+	}
+	
+	// clamp a value into the float range, NaN has no sensible sign or magnitude so it becomes 0
+	protected static double saturate(double value) {
+		if (Double.isNaN(value))
+			return 0;
+		else if (value > Float.MAX_VALUE)
+			return Float.MAX_VALUE;
+		else if (value < -Float.MAX_VALUE)
+			return -Float.MAX_VALUE;
+		else
+			return value;
+	}
+}
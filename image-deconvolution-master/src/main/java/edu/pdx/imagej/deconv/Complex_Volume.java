@@ -0,0 +1,96 @@
+package edu.pdx.imagej.deconv;
+
+// complex 3D matrix stored in a single contiguous array. Real and imaginary parts are interleaved, so voxel (slice, row, column)
+// has its real part at data[2*((slice*height + row)*width + column)] and its imaginary part right after it.
+// This is the layout the 1D-array entry points of FloatFFT_3D(slices, height, width) expect.
+public class Complex_Volume {
+	public final int slices;
+	public final int height;
+	public final int width;
+	public final float[] data;
+	
+	// allocate an empty volume
+	public Complex_Volume(int i_slices, int i_height, int i_width) {
+		this(i_slices, i_height, i_width, new float[Real_Volume.checkedLength(i_slices, i_height, i_width, 2)]);
+	}
+	
+	// wrap an existing interleaved array without copying it
+	public Complex_Volume(int i_slices, int i_height, int i_width, float[] i_data) {
+		if (i_data.length != Real_Volume.checkedLength(i_slices, i_height, i_width, 2))
+			throw new IllegalArgumentException("Data length " + i_data.length + " does not match a complex " + i_slices + "x" + i_height + "x" + i_width + " volume.");
+		
+		slices = i_slices;
+		height = i_height;
+		width = i_width;
+		data = i_data;
+	}
+	
+	// number of complex voxels in the volume
+	public int size() {
+		return data.length / 2;
+	}
+	
+	// number of complex voxels in one slice
+	public int sliceSize() {
+		return height * width;
+	}
+	
+	// position of the real part of a voxel in data, the imaginary part is at index + 1
+	public int index(int slice, int row, int column) {
+		return 2 * ((slice * height + row) * width + column);
+	}
+	
+	public float getRe(int slice, int row, int column) {
+		return data[index(slice, row, column)];
+	}
+	
+	public float getIm(int slice, int row, int column) {
+		return data[index(slice, row, column) + 1];
+	}
+	
+	public void set(int slice, int row, int column, float re, float im) {
+		int pos = index(slice, row, column);
+		data[pos] = re;
+		data[pos + 1] = im;
+	}
+	
+	public boolean sameShape(Complex_Volume other) {
+		return slices == other.slices && height == other.height && width == other.width;
+	}
+	
+	public boolean sameShape(Real_Volume other) {
+		return slices == other.slices && height == other.height && width == other.width;
+	}
+	
+	public Complex_Volume copy() {
+		return new Complex_Volume(slices, height, width, data.clone());
+	}
+	
+	// copy a jagged matrix in FFT form ([slices][height][2*width]) into a new volume
+	public static Complex_Volume fromArray(float[][][] mat) {
+		Complex_Volume ret = new Complex_Volume(mat.length, mat[0].length, mat[0][0].length / 2);
+		int rowLength = 2 * ret.width;
+		int pos = 0;
+		for (int i = 0; i < ret.slices; i++)
+			for (int j = 0; j < ret.height; j++) {
+				System.arraycopy(mat[i][j], 0, ret.data, pos, rowLength);
+				pos += rowLength;
+			}
+		
+		return ret;
+	}
+	
+	// copy the volume back into a jagged matrix in FFT form ([slices][height][2*width])
+	public float[][][] toArray() {
+		float[][][] ret = new float[slices][height][2 * width];
+		int rowLength = 2 * width;
+		int pos = 0;
+		for (int i = 0; i < slices; i++)
+			for (int j = 0; j < height; j++) {
+				System.arraycopy(data, pos, ret[i][j], 0, rowLength);
+				pos += rowLength;
+			}
+		
+		return ret;
+	}
+}
\ No newline at end of file
@@ -1,147 +1,24 @@
 package edu.pdx.imagej.deconv;
 
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.WindowManager;
 import ij.io.DirectoryChooser;
 import ij.io.OpenDialog;
 import ij.plugin.HyperStackConverter;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import org.jtransforms.fft.FloatFFT_3D;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 public class Deconvolve_Image_Utils {
 	
-	// returns (a + b*i) = (c + d*i)/(e + f*i) as {a, b}
-	private float[] complexDivide(float c, float d, float e, float f) {
-		double denom = Math.pow(e, 2) + Math.pow(f, 2);
-		float re = (float)((c*e + d*f) / denom);
-		float im = (float)((d*e - c*f) / denom);
-		
-		if (!Float.isFinite(re) || !Float.isFinite(im))
-			return complexDivideBig(c, d, e, f);
-		
-		float[] ret = {re, im};
-		return ret;
-	}
-	
-	// handle complex division with big numbers
-	private float[] complexDivideBig(float c, float d, float e, float f) {
-		try {
-			BigDecimal bigC = BigDecimal.valueOf((double)c);
-			BigDecimal bigD = BigDecimal.valueOf((double)d);
-			BigDecimal bigE = BigDecimal.valueOf((double)e);
-			BigDecimal bigF = BigDecimal.valueOf((double)f);
-		
-			BigDecimal denom = bigE.multiply(bigE).add(bigF.multiply(bigF));
-			BigDecimal re = bigC.multiply(bigE).add(bigD.multiply(bigF)).divide(denom, RoundingMode.HALF_UP);
-			BigDecimal im = bigD.multiply(bigE).subtract(bigC.multiply(bigF)).divide(denom, RoundingMode.HALF_UP);
-		
-			float[] ret = {re.floatValue(), im.floatValue()};
-			return ret;
-		}
-		catch (NumberFormatException ex) {
-			float[] ret = {0, 0};
-			return ret;
-		}
-	}
-	
-	// returns (a + b*i) = (c + d*i)*(e + f*i) as {a, b}
-	private float[] complexMult(float c, float d, float e, float f) {
-		float re = (c*e - d*f);
-		float im = (c*f + d*e);
-		
-		if (!Float.isFinite(re) || !Float.isFinite(im))
-			return complexMultBig(c, d, e, f);
-		
-		float[] ret = {re, im};
-		return ret;
-	}
+	private Complex_Kernels kernels = Complex_Kernels.create();
 	
-	// handle complex multiplication with big numbers
-	private float[] complexMultBig(float c, float d, float e, float f) {
-		try {
-			BigDecimal bigC = BigDecimal.valueOf((double)c);
-			BigDecimal bigD = BigDecimal.valueOf((double)d);
-			BigDecimal bigE = BigDecimal.valueOf((double)e);
-			BigDecimal bigF = BigDecimal.valueOf((double)f);
-		
-			BigDecimal re = bigC.multiply(bigE).subtract(bigD.multiply(bigF));
-			BigDecimal im = bigC.multiply(bigF).subtract(bigD.multiply(bigE));
-		
-			float[] ret = {re.floatValue(), im.floatValue()};
-			return ret;
-		}
-		catch(NumberFormatException ex) {
-			float[] ret = {0, 0};
-			return ret;
-		}
-	}
-	
-	// returns (a + b*i) = (c + d*i) - (e + f*i) as {a, b}
-	private float[] complexSub(float c, float d, float e, float f) {
-		float re = c - e;
-		float im = d - f;
-		float[] ret = {re, im};
-		
-		if (!Float.isFinite(re) || !Float.isFinite(im))
-			return complexSubBig(c, d, e, f);
-		
-		return ret;
-	}
-	
-	// handle complex subtraction with big numbers
-	private float[] complexSubBig(float c, float d, float e, float f) {
-		try {
-			BigDecimal bigC = BigDecimal.valueOf((double)c);
-			BigDecimal bigD = BigDecimal.valueOf((double)d);
-			BigDecimal bigE = BigDecimal.valueOf((double)e);
-			BigDecimal bigF = BigDecimal.valueOf((double)f);
-		
-			BigDecimal re = bigC.subtract(bigE);
-			BigDecimal im = bigD.subtract(bigF);
-		
-			float[] ret = {re.floatValue(), im.floatValue()};
-			return ret;
-		}
-		catch(NumberFormatException ex) {
-			float[] ret = {0, 0};
-			return ret;
-		}
-	}
-	
-	// returns (a + b*i) = (c + d*i) + (e + f*i) as {a, b}
-	private float[] complexAdd(float c, float d, float e, float f) {
-		float re = c + e;
-		float im = d + f;
-		float[] ret = {re, im};
-		
-		if (!Float.isFinite(re) || !Float.isFinite(im))
-			return complexAddBig(c, d, e, f);
-		
-		return ret;
-	}
-	
-	// handle complex addition with big numbers
-	private float[] complexAddBig(float c, float d, float e, float f) {
-		try {
-			BigDecimal bigC = BigDecimal.valueOf((double)c);
-			BigDecimal bigD = BigDecimal.valueOf((double)d);
-			BigDecimal bigE = BigDecimal.valueOf((double)e);
-			BigDecimal bigF = BigDecimal.valueOf((double)f);
-		
-			BigDecimal re = bigC.add(bigE);
-			BigDecimal im = bigD.add(bigF);
-		
-			float[] ret = {re.floatValue(), im.floatValue()};
-			return ret;
-		}
-		catch(NumberFormatException ex) {
-			float[] ret = {0, 0};
-			return ret;
-		}
+	// number of complex results that had to be saturated by matrixOperations (see Complex_Kernels)
+	public long getSaturationCount() {
+		return kernels.getSaturationCount();
 	}
 	
 	// Show window to select an image file. Returns the file path as a string.
@@ -170,23 +47,93 @@ public class Deconvolve_Image_Utils {
 	
 	// Takes an image stack and returns a float 4D matrix
 	public float[][][][] getMatrix4D(ImagePlus image) {
-		int width = image.getWidth();
-		int height = image.getHeight();
+		Real_Volume[] vols = getVolumes(image);
+		float[][][][] mat = new float[vols.length][][][];
+		for (int i = 0; i < vols.length; i++)
+			mat[i] = vols[i].toArray();
+		
+		return mat;
+	}
+	
+	// Takes an image stack and returns the first frame as a flat volume
+	public Real_Volume getVolume(ImagePlus image) {
+		return getVolumes(image)[0];
+	}
+	
+	// Takes an image stack and returns one flat volume per frame. Each slice's pixel array is read once and converted
+	// straight into the volume, the slices are loaded in parallel unless the stack is virtual (those read from disk)
+	public Real_Volume[] getVolumes(ImagePlus image) {
 		int slices = image.getNSlices();
 		int frames = image.getNFrames();
-		ImageStack stack = image.getStack();
-		float[][][][] mat = new float[frames][slices][height][width];
+		ImageStack stack = getStack(image);
+		Real_Volume[] vols = new Real_Volume[frames];
+		for (int i = 0; i < frames; i++)
+			vols[i] = new Real_Volume(slices, image.getHeight(), image.getWidth());
 		
-		// loop over image stack and assign values to matrix - note frames, slices, and StackIndex are 1-based
-		for (int i = 1; i <= frames; i++ ) {
-			for (int j = 1; j <= slices; j++) {
-				for (int k = 0; k < height; k++) {
-					for (int l = 0; l < width; l++)
-						mat[i-1][j-1][k][l] = (float)stack.getVoxel(l, k, image.getStackIndex(1, j, i)-1);
-				}
+		IntStream planes = IntStream.range(0, frames * slices);
+		if (!stack.isVirtual())
+			planes = planes.parallel();
+		planes.forEach(n -> loadSlice(image, stack, n / slices, n % slices, vols[n / slices]));
+		
+		return vols;
+	}
+	
+	// Takes an image stack and returns frame i (0-based) as a flat volume, for engines that work one frame at a time.
+	// Safe to call from several threads at once
+	public Real_Volume getVolume(ImagePlus image, int i) {
+		int slices = image.getNSlices();
+		ImageStack stack = getStack(image);
+		Real_Volume vol = new Real_Volume(slices, image.getHeight(), image.getWidth());
+		
+		IntStream planes = IntStream.range(0, slices);
+		if (!stack.isVirtual())
+			planes = planes.parallel();
+		planes.forEach(j -> loadSlice(image, stack, i, j, vol));
+		
+		return vol;
+	}
+	
+	// ImagePlus.getStack can update the stack from the current processor, so only one thread may call it at a time
+	private ImageStack getStack(ImagePlus image) {
+		synchronized (image) {
+			return image.getStack();
+		}
+	}
+	
+	// note frames, slices, and StackIndex are 1-based. Virtual stacks read from disk and are not thread safe
+	private void loadSlice(ImagePlus image, ImageStack stack, int frame, int slice, Real_Volume vol) {
+		int index = image.getStackIndex(1, slice + 1, frame + 1);
+		Object pixels;
+		if (stack.isVirtual())
+			synchronized (stack) {
+				pixels = stack.getPixels(index);
 			}
+		else
+			pixels = stack.getPixels(index);
+		toFloat(pixels, vol.data, slice * vol.sliceSize(), vol.sliceSize());
+	}
+	
+	// convert one slice's pixels to floats the same way ImageStack.getVoxel does (unsigned 8 and 16 bit, RGB as the packed int)
+	private void toFloat(Object pixels, float[] dest, int offset, int length) {
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			for (int i = 0; i < length; i++)
+				dest[offset + i] = p[i] & 0xff;
 		}
-		return mat;
+		else if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			for (int i = 0; i < length; i++)
+				dest[offset + i] = p[i] & 0xffff;
+		}
+		else if (pixels instanceof float[])
+			System.arraycopy((float[]) pixels, 0, dest, offset, length);
+		else if (pixels instanceof int[]) {
+			int[] p = (int[]) pixels;
+			for (int i = 0; i < length; i++)
+				dest[offset + i] = p[i];
+		}
+		else
+			throw new IllegalArgumentException("Unsupported pixel type.");
 	}
 	
 	// Takes 3D matrix and puts it into a form compatible with the FFT package
@@ -294,6 +241,59 @@ public class Deconvolve_Image_Utils {
 		return ret;
 	}
 	
+	// flat volume versions of the above. The imaginary parts of a real volume are left at zero.
+	public Complex_Volume toFFTform(Real_Volume vol) {
+		Complex_Volume ret = new Complex_Volume(vol.slices, vol.height, vol.width);
+		for (int i = 0; i < vol.size(); i++)
+			ret.data[2*i] = vol.data[i];
+		
+		return ret;
+	}
+	
+	public Complex_Volume[] toFFTform(Real_Volume[] vols) {
+		Complex_Volume[] ret = new Complex_Volume[vols.length];
+		for (int i = 0; i < vols.length; i++)
+			ret[i] = toFFTform(vols[i]);
+		
+		return ret;
+	}
+	
+	public Complex_Volume toFFTform(Real_Volume amp, Real_Volume phase) {
+		Complex_Volume ret = new Complex_Volume(amp.slices, amp.height, amp.width);
+		for (int i = 0; i < amp.size(); i++) {
+			ret.data[2*i] = amp.data[i] * (float)Math.cos((double)phase.data[i]);
+			ret.data[2*i + 1] = amp.data[i] * (float)Math.sin((double)phase.data[i]);
+		}
+		
+		return ret;
+	}
+	
+	public Complex_Volume[] toFFTform(Real_Volume[] amp, Real_Volume[] phase) {
+		Complex_Volume[] ret = new Complex_Volume[amp.length];
+		for (int i = 0; i < amp.length; i++)
+			ret[i] = toFFTform(amp[i], phase[i]);
+		
+		return ret;
+	}
+	
+	public Complex_Volume toFFTformRect(Real_Volume reVol, Real_Volume imVol) {
+		Complex_Volume ret = new Complex_Volume(reVol.slices, reVol.height, reVol.width);
+		for (int i = 0; i < reVol.size(); i++) {
+			ret.data[2*i] = reVol.data[i];
+			ret.data[2*i + 1] = imVol.data[i];
+		}
+		
+		return ret;
+	}
+	
+	public Complex_Volume[] toFFTformRect(Real_Volume[] reVol, Real_Volume[] imVol) {
+		Complex_Volume[] ret = new Complex_Volume[reVol.length];
+		for (int i = 0; i < reVol.length; i++)
+			ret[i] = toFFTformRect(reVol[i], imVol[i]);
+		
+		return ret;
+	}
+	
 	// takes a complex matrix and squish it back to a simple amplitude matrix
 	public float[][][] getAmplitudeMat(float[][][] mat) {
 		int slices = mat.length;
@@ -406,6 +406,88 @@ public class Deconvolve_Image_Utils {
 		return ret;
 	}
 	
+	// flat volume versions of the above
+	public Real_Volume getAmplitudeMat(Complex_Volume vol) {
+		Real_Volume ret = new Real_Volume(vol.slices, vol.height, vol.width);
+		for (int i = 0; i < ret.size(); i++)
+			ret.data[i] = (float)Math.sqrt((double)vol.data[2*i] * (double)vol.data[2*i] + (double)vol.data[2*i + 1] * (double)vol.data[2*i + 1]);
+		
+		return ret;
+	}
+	
+	public Real_Volume[] getAmplitudeMat(Complex_Volume[] vols) {
+		Real_Volume[] ret = new Real_Volume[vols.length];
+		for (int i = 0; i < vols.length; i++)
+			ret[i] = getAmplitudeMat(vols[i]);
+		
+		return ret;
+	}
+	
+	public Real_Volume getPhaseMat(Complex_Volume vol) {
+		Real_Volume ret = new Real_Volume(vol.slices, vol.height, vol.width);
+		for (int i = 0; i < ret.size(); i++)
+			ret.data[i] = (float)Math.atan2(vol.data[2*i + 1], vol.data[2*i]);
+		
+		return ret;
+	}
+	
+	public Real_Volume[] getPhaseMat(Complex_Volume[] vols) {
+		Real_Volume[] ret = new Real_Volume[vols.length];
+		for (int i = 0; i < vols.length; i++)
+			ret[i] = getPhaseMat(vols[i]);
+		
+		return ret;
+	}
+	
+	public Real_Volume getReMat(Complex_Volume vol) {
+		Real_Volume ret = new Real_Volume(vol.slices, vol.height, vol.width);
+		for (int i = 0; i < ret.size(); i++)
+			ret.data[i] = vol.data[2*i];
+		
+		return ret;
+	}
+	
+	public Real_Volume[] getReMat(Complex_Volume[] vols) {
+		Real_Volume[] ret = new Real_Volume[vols.length];
+		for (int i = 0; i < vols.length; i++)
+			ret[i] = getReMat(vols[i]);
+		
+		return ret;
+	}
+	
+	public Real_Volume getImMat(Complex_Volume vol) {
+		Real_Volume ret = new Real_Volume(vol.slices, vol.height, vol.width);
+		for (int i = 0; i < ret.size(); i++)
+			ret.data[i] = vol.data[2*i + 1];
+		
+		return ret;
+	}
+	
+	public Real_Volume[] getImMat(Complex_Volume[] vols) {
+		Real_Volume[] ret = new Real_Volume[vols.length];
+		for (int i = 0; i < vols.length; i++)
+			ret[i] = getImMat(vols[i]);
+		
+		return ret;
+	}
+	
+	// amplitude of real data, i.e. the result of the real FFT path in place of getAmplitudeMat(Complex_Volume)
+	public Real_Volume getAmplitudeMat(Real_Volume vol) {
+		Real_Volume ret = new Real_Volume(vol.slices, vol.height, vol.width);
+		for (int i = 0; i < ret.size(); i++)
+			ret.data[i] = Math.abs(vol.data[i]);
+		
+		return ret;
+	}
+	
+	public Real_Volume[] getAmplitudeMat(Real_Volume[] vols) {
+		Real_Volume[] ret = new Real_Volume[vols.length];
+		for (int i = 0; i < vols.length; i++)
+			ret[i] = getAmplitudeMat(vols[i]);
+		
+		return ret;
+	}
+	
 	public float[][][] increment(float[][][] mat, float inc) {
 		int slices = mat.length;
 		int height = mat[0].length;
@@ -430,6 +512,22 @@ public class Deconvolve_Image_Utils {
 		return ret;
 	}
 	
+	public Real_Volume increment(Real_Volume vol, float inc) {
+		Real_Volume ret = new Real_Volume(vol.slices, vol.height, vol.width);
+		for (int i = 0; i < ret.size(); i++)
+			ret.data[i] = vol.data[i] + inc;
+		
+		return ret;
+	}
+	
+	public Real_Volume[] increment(Real_Volume[] vols, float inc) {
+		Real_Volume[] ret = new Real_Volume[vols.length];
+		for (int i = 0; i < vols.length; i++)
+			ret[i] = increment(vols[i], inc);
+		
+		return ret;
+	}
+	
 	// adds inc to each real element of a complex 3D matrix
 	public float[][][] incrementComplex(float[][][] mat, float inc) {
 		int slices = mat.length;
@@ -446,6 +544,14 @@ public class Deconvolve_Image_Utils {
 		return ret;
 	}
 	
+	public Complex_Volume incrementComplex(Complex_Volume vol, float inc) {
+		Complex_Volume ret = vol.copy();
+		for (int i = 0; i < ret.data.length; i += 2)
+			ret.data[i] += inc;
+		
+		return ret;
+	}
+	
 	// divides, multiplies, subtracts, or adds corresponding elements in two 3D matrices
 	// these are complex matrices, so additional operations are required
 	public float[][][] matrixOperations(float[][][] mat1, float[][][] mat2, String operation) {
@@ -453,45 +559,11 @@ public class Deconvolve_Image_Utils {
 		int height = mat1[0].length;
 		int width = (int)(mat1[0][0].length / 2);
 		float[][][] retMat = new float[slices][height][2*width];
-		
-		float c; // Re of mat1 element
-		float d; // Im of mat1 element
-		float e; // Re of mat2 element
-		float f; // Im of mat2 element
-		float[] result; // {Re, Im}
+		Complex_Kernels.Operation op = Complex_Kernels.Operation.fromName(operation);
 		
 		for (int i = 0; i < slices; i++)
 			for (int j = 0; j < height; j++)
-				for (int k = 0; k < width; k++) {
-					c = mat1[i][j][2*k];
-					d = mat1[i][j][2*k+1];
-					e = mat2[i][j][2*k];
-					f = mat2[i][j][2*k + 1];
-					if (operation == "divide") {
-						result = complexDivide(c, d, e, f);
-						// real part of dividing two complex numbers
-						retMat[i][j][2*k] = result[0];
-						// imaginary part of dividing two complex numbers
-						retMat[i][j][2*k + 1] = result[1];
-					}
-					else if (operation == "multiply") {
-						result = complexMult(c, d, e, f);
-						// real part of multiplying two complex numbers
-						retMat[i][j][2*k] = result[0];
-						// imaginary part of multiplying two complex numbers
-						retMat[i][j][2*k + 1] = result[1];
-					}
-					else if (operation == "subtract") {
-						result = complexSub(c, d, e, f);
-						retMat[i][j][2*k] = result[0];
-						retMat[i][j][2*k + 1] = result[1];
-					}
-					else {
-						result = complexAdd(c, d, e, f);
-						retMat[i][j][2*k] = result[0];
-						retMat[i][j][2*k + 1] = result[1];
-					}
-				}
+				kernels.apply(op, mat1[i][j], mat2[i][j], 0, retMat[i][j], 0, 2*width);
 		
 		return retMat;
 	}
@@ -513,6 +585,22 @@ public class Deconvolve_Image_Utils {
 		return retMat;
 	}
 	
+	// flat volume versions of matrixOperations and complexConj
+	public Complex_Volume matrixOperations(Complex_Volume vol1, Complex_Volume vol2, String operation) {
+		Complex_Volume retVol = new Complex_Volume(vol1.slices, vol1.height, vol1.width);
+		kernels.apply(Complex_Kernels.Operation.fromName(operation), vol1, vol2, retVol);
+		
+		return retVol;
+	}
+	
+	public Complex_Volume complexConj(Complex_Volume vol) {
+		Complex_Volume retVol = vol.copy();
+		for (int i = 1; i < retVol.data.length; i += 2)
+			retVol.data[i] = -retVol.data[i];
+		
+		return retVol;
+	}
+	
 	// scales a  matrix (can be real or complex)
 	public float[][][] scaleMat(float[][][] mat, float scale) {
 		int slices = mat.length;
@@ -546,6 +634,39 @@ public class Deconvolve_Image_Utils {
 		return retMat;
 	}
 	
+	// scales flat volumes (real or complex)
+	public Real_Volume scaleMat(Real_Volume vol, float scale) {
+		Real_Volume retVol = new Real_Volume(vol.slices, vol.height, vol.width);
+		for (int i = 0; i < retVol.data.length; i++)
+			retVol.data[i] = scale * vol.data[i];
+		
+		return retVol;
+	}
+	
+	public Real_Volume[] scaleMat(Real_Volume[] vols, float scale) {
+		Real_Volume[] retVols = new Real_Volume[vols.length];
+		for (int i = 0; i < vols.length; i++)
+			retVols[i] = scaleMat(vols[i], scale);
+		
+		return retVols;
+	}
+	
+	public Complex_Volume scaleMat(Complex_Volume vol, float scale) {
+		Complex_Volume retVol = new Complex_Volume(vol.slices, vol.height, vol.width);
+		for (int i = 0; i < retVol.data.length; i++)
+			retVol.data[i] = scale * vol.data[i];
+		
+		return retVol;
+	}
+	
+	public Complex_Volume[] scaleMat(Complex_Volume[] vols, float scale) {
+		Complex_Volume[] retVols = new Complex_Volume[vols.length];
+		for (int i = 0; i < vols.length; i++)
+			retVols[i] = scaleMat(vols[i], scale);
+		
+		return retVols;
+	}
+	
 	// covert 3D matrix to ImagePlus image
 	public ImagePlus reassign(float[][][] testMat, String impType, String title) {
 		float [][][][] four_dim = {testMat};
@@ -554,36 +675,11 @@ public class Deconvolve_Image_Utils {
 	
 	// covert 4D matrix to ImagePlus image
 	public ImagePlus reassign(float[][][][] testMat, String impType, String title) {
-		int frames = testMat.length;
-		int width = testMat[0][0][0].length;
-		int height = testMat[0][0].length;
-		int slices = testMat[0].length;
-	
-		ImageStack stack = new ImageStack(width, height);
-		ImageProcessor ref = new FloatProcessor(testMat[0][0]);
-		for (int i = 1; i <= frames; i++) 
-			for (int j = 1; j <= slices; j++) {
-				ImageProcessor ip = new FloatProcessor(testMat[i-1][j-1]);
-				ip = ip.rotateRight();
-				ip.flipHorizontal();
-				// convert image stack to correct architecture with scaling
-				if (impType != "GRAY32")
-					if (impType == "GRAY16")
-						ip = ip.convertToShortProcessor(true);
-					else
-						ip = ip.convertToByte(true);
-				
-				stack.addSlice(ip);
-				if (i == Math.round(frames/2) && j == Math.round(slices/2))
-					ref = ip;
-			}
-		stack.update(ref);
-		ImagePlus result = new ImagePlus(title, stack);
-		if (frames > 1) {
-			return HyperStackConverter.toHyperStack(result, 1, slices, frames);
-		}
-
-		return result;
+		Real_Volume[] vols = new Real_Volume[testMat.length];
+		for (int i = 0; i < testMat.length; i++)
+			vols[i] = Real_Volume.fromArray(testMat[i]);
+		
+		return reassign(vols, impType, title);
 	}
 	
 	// shift a 3D matrix so that all values fall between newMin and newMax
@@ -605,6 +701,125 @@ public class Deconvolve_Image_Utils {
 					mat[i][j][k] = (mat[i][j][k] - min)*(newMax - newMin)/(max - min) + newMin;
 	}
 	
+	// covert flat volume(s) to ImagePlus image
+	public ImagePlus reassign(Real_Volume vol, String impType, String title) {
+		return reassign(new Real_Volume[] {vol}, impType, title);
+	}
+	
+	// volumes are already row-major like ImageJ's pixel arrays, so every slice is one copy (or one conversion pass).
+	// 8 and 16 bit results are scaled with the minimum and maximum of the whole hyperstack, so slices keep their relative
+	// brightness. Slices are built in parallel
+	public ImagePlus reassign(Real_Volume[] vols, String impType, String title) {
+		int frames = vols.length;
+		int slices = vols[0].slices;
+		int height = vols[0].height;
+		int width = vols[0].width;
+		int sliceSize = width * height;
+		
+		float min = minOf(vols[0]);
+		float max = maxOf(vols[0]);
+		for (int i = 1; i < frames; i++) {
+			min = Math.min(min, minOf(vols[i]));
+			max = Math.max(max, maxOf(vols[i]));
+		}
+		float low = min;
+		double range = max - min;
+		
+		Object[] pixels = new Object[frames * slices];
+		IntStream.range(0, frames * slices).parallel().forEach(n -> {
+			pixels[n] = toPixels(vols[n / slices].data, (n % slices) * sliceSize, sliceSize, impType, low, range);
+		});
+		
+		// frames, then slices within a frame, is the order HyperStackConverter expects
+		ImageStack stack = new ImageStack(width, height);
+		for (int n = 0; n < pixels.length; n++)
+			stack.addSlice(null, pixels[n]);
+		
+		ImagePlus result = new ImagePlus(title, stack);
+		if (frames > 1)
+			result = HyperStackConverter.toHyperStack(result, 1, slices, frames);
+		if (impType == "GRAY32")
+			result.setDisplayRange(min, max);
+		else
+			result.resetDisplayRange();
+		
+		return result;
+	}
+	
+	// same as above for frames in a Frame_Store, the result is a virtual stack that reads the store when slices are shown.
+	// The store is closed, and its scratch file deleted, when the image is closed
+	public ImagePlus reassign(Frame_Store store, String impType, String title) {
+		Frame_Store_Stack stack = new Frame_Store_Stack(store, impType);
+		ImagePlus result = new ImagePlus(title, stack);
+		if (store.frames > 1) {
+			result.setDimensions(1, store.slices, store.frames);
+			result.setOpenAsHyperStack(true);
+		}
+		if (impType == "GRAY32")
+			result.setDisplayRange(stack.getMin(), stack.getMax());
+		else
+			result.resetDisplayRange();
+		
+		ImagePlus.addImageListener(new ImageListener() {
+			@Override
+			public void imageClosed(ImagePlus imp) {
+				if (imp != result)
+					return;
+				ImagePlus.removeImageListener(this);
+				store.close();
+			}
+			
+			@Override
+			public void imageOpened(ImagePlus imp) {
+			}
+			
+			@Override
+			public void imageUpdated(ImagePlus imp) {
+			}
+		});
+		
+		return result;
+	}
+	
+	// one slice of reassign output: a copy for GRAY32, otherwise scaled from [min, min + range] to the full 8 or 16 bit range
+	public Object toPixels(float[] data, int offset, int length, String impType, float min, double range) {
+		if (impType == "GRAY32")
+			return Arrays.copyOfRange(data, offset, offset + length);
+		else if (impType == "GRAY16")
+			return toShort(data, offset, length, min, range > 0 ? 65535 / range : 1);
+		else
+			return toByte(data, offset, length, min, range > 0 ? 255 / range : 1);
+	}
+	
+	// scaled conversions used by reassign, rounded and clamped like ImageJ's own
+	private short[] toShort(float[] data, int offset, int length, float min, double scale) {
+		short[] ret = new short[length];
+		for (int i = 0; i < length; i++) {
+			double value = (data[offset + i] - min) * scale + 0.5;
+			ret[i] = (short) Math.max(0, Math.min(65535, (int) value));
+		}
+		
+		return ret;
+	}
+	
+	private byte[] toByte(float[] data, int offset, int length, float min, double scale) {
+		byte[] ret = new byte[length];
+		for (int i = 0; i < length; i++) {
+			double value = (data[offset + i] - min) * scale + 0.5;
+			ret[i] = (byte) Math.max(0, Math.min(255, (int) value));
+		}
+		
+		return ret;
+	}
+	
+	// shift a flat volume so that all values fall between newMin and newMax
+	public void linearShift(Real_Volume vol, float newMin, float newMax) {
+		float min = minOf(vol);
+		float max = maxOf(vol);
+		for (int i = 0; i < vol.data.length; i++)
+			vol.data[i] = (vol.data[i] - min)*(newMax - newMin)/(max - min) + newMin;
+	}
+	
 	// invert an entire image
     public void invert(ImagePlus imp) {
     	ImageProcessor ip;
@@ -643,6 +858,27 @@ public class Deconvolve_Image_Utils {
     				matIm[i][j][k] = matIm[i][j][k] / total;
     			}
     }
+	
+	// flat volume versions of normalize
+	public void normalize(Real_Volume vol) {
+		float total = 0;
+		for (int i = 0; i < vol.data.length; i++)
+			total += vol.data[i];
+		
+		for (int i = 0; i < vol.data.length; i++)
+			vol.data[i] = vol.data[i] / total;
+	}
+	
+	public void normalize(Real_Volume volRe, Real_Volume volIm) {
+		float total = 0;
+		for (int i = 0; i < volRe.data.length; i++)
+			total += Math.sqrt(volRe.data[i]*volRe.data[i] + volIm.data[i]*volIm.data[i]);
+		
+		for (int i = 0; i < volRe.data.length; i++) {
+			volRe.data[i] = volRe.data[i] / total;
+			volIm.data[i] = volIm.data[i] / total;
+		}
+	}
     
     // after taking the inverse Fourier transform, the quadrants of the image are flipped around for some reason. This puts it back to normal.
     public float[][][] formatIFFT(float[][][] ampMat) {
@@ -691,85 +927,275 @@ public class Deconvolve_Image_Utils {
 		
 		return ret;
 	}
+	
+	// flat volume versions of formatIFFT. Complex volumes have both parts moved together.
+	public Real_Volume formatIFFT(Real_Volume vol) {
+		Real_Volume ret = new Real_Volume(vol.slices, vol.height, vol.width);
+		shiftQuadrants(vol.data, ret.data, vol.slices, vol.height, vol.width, 1);
+		return ret;
+	}
+	
+	public Real_Volume[] formatIFFT(Real_Volume[] vols) {
+		Real_Volume[] ret = new Real_Volume[vols.length];
+		for (int i = 0; i < vols.length; i++)
+			ret[i] = formatIFFT(vols[i]);
+		
+		return ret;
+	}
+	
+	public Complex_Volume formatIFFT(Complex_Volume vol) {
+		Complex_Volume ret = new Complex_Volume(vol.slices, vol.height, vol.width);
+		shiftQuadrants(vol.data, ret.data, vol.slices, vol.height, vol.width, 2);
+		return ret;
+	}
+	
+	// same reordering as formatIFFT(float[][][]) on a flat array with the given number of floats per voxel
+	private void shiftQuadrants(float[] src, float[] dest, int slices, int height, int width, int components) {
+		int halfSlices = slices / 2;
+		int halfHeight = height / 2;
+		int halfWidth = width / 2;
+		int rowLength = width * components;
+		int sliceLength = height * rowLength;
+		float placehold;
+		
+		for (int i = 0; i < slices; i++) {
+			// slices are rotated by half the stack
+			int offset = ((i + halfSlices) % slices) * sliceLength;
+			System.arraycopy(src, i * sliceLength, dest, offset, sliceLength);
+			
+			// then the lateral quadrants are swapped diagonally
+			for (int j = 0; j < halfHeight; j++)
+				for (int k = 0; k < width; k++) {
+					int shiftedK = k < halfWidth ? k + halfWidth : k - halfWidth;
+					int a = offset + j * rowLength + k * components;
+					int b = offset + (j + halfHeight) * rowLength + shiftedK * components;
+					for (int c = 0; c < components; c++) {
+						placehold = dest[a + c];
+						dest[a + c] = dest[b + c];
+						dest[b + c] = placehold;
+					}
+				}
+		}
+	}
+	
+	// forward and inverse transforms of a flat complex volume, in place
+	public void fourierForward(Complex_Volume vol) {
+		FFT_Cache.complexForward(vol);
+	}
+	
+	public void fourierInverse(Complex_Volume vol) {
+		FFT_Cache.complexInverse(vol);
+	}
     
     // convolve two matrices by elementwise multiplication in Fourier space. mat1, mat2, and ret are all in FFT form
 	public float[][][] fourierConvolve(float[][][] mat1, float[][][] mat2) {
-		FloatFFT_3D fft = new FloatFFT_3D((long)mat1.length, (long)mat1[0].length, (long)mat1[0][0].length/2);
-		float[][][] mat1FT = new float[mat1.length][mat1[0].length][mat1[0][0].length];
-		float[][][] mat2FT = new float[mat1.length][mat1[0].length][mat1[0][0].length];
-		float[][][] retMat = new float[mat1.length][mat1[0].length][mat1[0][0].length];
-		
-		// make copy of mat1 and mat2 so we don't change them
-		for (int i = 0; i < mat1.length; i++)
-			for (int j = 0; j < mat1[0].length; j++) 
-				for (int k = 0; k < mat1[0][0].length; k++) {
-					mat1FT[i][j][k] = mat1[i][j][k];
-					mat2FT[i][j][k] = mat2[i][j][k];
-				}		
+		return fourierConvolve(Complex_Volume.fromArray(mat1), Complex_Volume.fromArray(mat2)).toArray();
+	}
+	
+	// flat volume version of fourierConvolve, vol1 and vol2 are left unchanged
+	public Complex_Volume fourierConvolve(Complex_Volume vol1, Complex_Volume vol2) {
+		return fourierConvolve(vol1, new Prepared_PSF(vol2));
+	}
+	
+	// real data version of fourierConvolve using the half-spectrum transform, vol1 and vol2 are left unchanged
+	public Real_Volume fourierConvolve(Real_Volume vol1, Real_Volume vol2) {
+		return fourierConvolve(vol1, new Prepared_PSF(vol2));
+	}
 	
-		fft.complexForward(mat1FT);
-		fft.complexForward(mat2FT);
+	// convolve with a prepared PSF, so only vol is transformed. vol is left unchanged
+	public Complex_Volume fourierConvolve(Complex_Volume vol, Prepared_PSF psf) {
+		if (!psf.matches(vol))
+			throw new IllegalArgumentException("The PSF was not prepared for complex volumes of this size.");
 		
-		retMat = matrixOperations(mat1FT, mat2FT, "multiply");
-		fft.complexInverse(retMat, true);
+		Complex_Volume retVol = vol.copy();
+		fourierForward(retVol);
+		kernels.apply(Complex_Kernels.Operation.MULTIPLY, retVol, psf.getOTF(), retVol);
+		fourierInverse(retVol);
 		
-		float[][][] reMat = getReMat(retMat);
-		float[][][] imMat = getImMat(retMat);
-		reMat = formatIFFT(reMat);
-		imMat = formatIFFT(imMat);
+		// a shifted PSF already did the formatting
+		return psf.isShifted() ? retVol : formatIFFT(retVol);
+	}
+	
+	public Real_Volume fourierConvolve(Real_Volume vol, Prepared_PSF psf) {
+		if (!psf.matches(vol))
+			throw new IllegalArgumentException("The PSF was not prepared for real volumes of this size.");
 		
-		retMat = toFFTformRect(reMat, imMat);
+		Real_FFT_3D fft = FFT_Cache.real(vol.slices, vol.height, vol.width);
+		Complex_Volume volFT = fft.forward(vol);
+		kernels.apply(Complex_Kernels.Operation.MULTIPLY, volFT, psf.getOTF(), volFT);
 		
-		return retMat;
+		Real_Volume retVol = fft.inverse(volFT);
+		
+		return psf.isShifted() ? retVol : formatIFFT(retVol);
+	}
+	
+	// jagged matrix in FFT form convolved with a prepared complex PSF
+	public float[][][] fourierConvolve(float[][][] mat, Prepared_PSF psf) {
+		return fourierConvolve(Complex_Volume.fromArray(mat), psf).toArray();
 	}
 	
 	// normalize a convolved image so it has the same minimum and maximum amplitude as the original image
 	public void fitConvolution(float[][][] convolved, float[][][] original) {
-		int slices = convolved.length;
-		int height = convolved[0].length;
-		int width = convolved[0][0].length / 2;
-		float[][][] originalAmps = getAmplitudeMat(original);
-		float[][][] convolvedAmpsOld = getAmplitudeMat(convolved);
-		float[][][] convolvedAmpsNew = getAmplitudeMat(convolved);
-	
-		float min = minOf(originalAmps);
-		float max = maxOf(originalAmps);
-			
-		linearShift(convolvedAmpsNew, min, max);
-		for (int j = 0; j < slices; j++)
-			for (int k = 0; k < height; k++)
-				for (int l = 0; l < width; l++) {
-					convolved[j][k][2*l] = convolved[j][k][2*l] * convolvedAmpsNew[j][k][l] / convolvedAmpsOld[j][k][l];
-					convolved[j][k][2*l + 1] = convolved[j][k][2*l + 1] * convolvedAmpsNew[j][k][l] / convolvedAmpsOld[j][k][l];
-				}				
+		Complex_Volume fitted = Complex_Volume.fromArray(convolved);
+		fitConvolution(fitted, Complex_Volume.fromArray(original));
+		
+		int rowLength = convolved[0][0].length;
+		for (int j = 0; j < convolved.length; j++)
+			for (int k = 0; k < convolved[0].length; k++)
+				System.arraycopy(fitted.data, (j*convolved[0].length + k)*rowLength, convolved[j][k], 0, rowLength);
 	}
 	
-	// find error of a deconvolved image
+	// find error of a deconvolved image, all matrices in FFT form. See accumulateError
 	public double getError(float[][][][] guess, float[][][][] image, float[][][] psfMat) {
-		int frames = image.length;
-		int slices = image[0].length;
-		int height = image[0][0].length;
-		int width = image[0][0][0].length / 2;
-		float[][][][] blurredMat = new float[frames][slices][height][2*width];
-		
-		// find blurred guess by convolving with PSF
-		for (int i = 0; i < frames; i++) {
-			blurredMat[i] = fourierConvolve(guess[i], psfMat);
-			fitConvolution(blurredMat[i], image[i]);
+		Complex_Volume[] guessVols = new Complex_Volume[guess.length];
+		Complex_Volume[] imageVols = new Complex_Volume[image.length];
+		for (int i = 0; i < image.length; i++) {
+			guessVols[i] = Complex_Volume.fromArray(guess[i]);
+			imageVols[i] = Complex_Volume.fromArray(image[i]);
 		}
 		
-		// find mean percent error of all the pixels
-		float originalTotal = 0;
-		float difference = 0;
-		for (int i = 0; i < frames; i++)
-			for (int j = 0; j < slices; j ++)
-				for (int k = 0; k < height; k++)
-					for (int l = 0; l < width; l++) {
-						originalTotal += Math.abs(image[i][j][k][l]);
-						difference += Math.abs(Math.abs(blurredMat[i][j][k][l]) - Math.abs(image[i][j][k][l]));
-					}
+		return getError(guessVols, imageVols, Complex_Volume.fromArray(psfMat));
+	}
+	
+	// flat volume version of fitConvolution, see fitAmplitudes
+	public void fitConvolution(Complex_Volume convolved, Complex_Volume original) {
+		fitAmplitudes(convolved.data, original.data, convolved.slices, true);
+	}
+	
+	// flat volume version of getError
+	public double getError(Complex_Volume[] guess, Complex_Volume[] image, Complex_Volume psfVol) {
+		return getError(guess, image, new Prepared_PSF(psfVol));
+	}
+	
+	public double getError(Complex_Volume[] guess, Complex_Volume[] image, Prepared_PSF psf) {
+		float[] totals = new float[2];
+		for (int i = 0; i < image.length; i++)
+			accumulateError(guess[i], image[i], psf, totals);
+		
+		return totals[1] / totals[0];
+	}
+	
+	// add one frame's share of getError to totals, {sum of |image|, sum of differences}. Lets engines that work one
+	// frame at a time compute the same error as getError. The guess is blurred with the PSF, fitted to the image like
+	// fitConvolution does and compared pixel by pixel
+	public void accumulateError(Complex_Volume guess, Complex_Volume image, Prepared_PSF psf, float[] totals) {
+		accumulateFittedError(fourierConvolve(guess, psf).data, image.data, true, totals);
+	}
+	
+	// real data versions of fitConvolution and getError
+	public void fitConvolution(Real_Volume convolved, Real_Volume original) {
+		fitAmplitudes(convolved.data, original.data, convolved.slices, false);
+	}
+	
+	public double getError(Real_Volume[] guess, Real_Volume[] image, Real_Volume psfVol) {
+		return getError(guess, image, new Prepared_PSF(psfVol));
+	}
+	
+	public double getError(Real_Volume[] guess, Real_Volume[] image, Prepared_PSF psf) {
+		float[] totals = new float[2];
+		for (int i = 0; i < image.length; i++)
+			accumulateError(guess[i], image[i], psf, totals);
+		
+		return totals[1] / totals[0];
+	}
+	
+	public void accumulateError(Real_Volume guess, Real_Volume image, Prepared_PSF psf, float[] totals) {
+		accumulateFittedError(fourierConvolve(guess, psf).data, image.data, false, totals);
+	}
+	
+	// fitConvolution on flat data without amplitude volumes: one parallel pass over the slices finds the amplitude ranges
+	// of both volumes, a second maps every amplitude of convolved onto the original's range in place, with the same
+	// arithmetic linearShift does. The ranges are found on squared amplitudes, whose square roots are only taken for the
+	// extremes. A zero amplitude stays zero, and a flat convolved volume fits to the original's minimum
+	private void fitAmplitudes(float[] convolved, float[] original, int slices, boolean complex) {
+		int sliceLength = convolved.length / slices;
+		double[][] ranges = new double[slices][];
+		IntStream.range(0, slices).parallel().forEach(s -> {
+			double convolvedMin = Double.MAX_VALUE;
+			double convolvedMax = -Double.MAX_VALUE;
+			double originalMin = Double.MAX_VALUE;
+			double originalMax = -Double.MAX_VALUE;
+			for (int i = s*sliceLength; i < (s + 1)*sliceLength; i += complex ? 2 : 1) {
+				double c = complex ? (double)convolved[i] * convolved[i] + (double)convolved[i + 1] * convolved[i + 1] : Math.abs(convolved[i]);
+				double o = complex ? (double)original[i] * original[i] + (double)original[i + 1] * original[i + 1] : Math.abs(original[i]);
+				convolvedMin = Math.min(convolvedMin, c);
+				convolvedMax = Math.max(convolvedMax, c);
+				originalMin = Math.min(originalMin, o);
+				originalMax = Math.max(originalMax, o);
+			}
+			ranges[s] = new double[] {convolvedMin, convolvedMax, originalMin, originalMax};
+		});
+		
+		double[] range = {Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE};
+		for (double[] sliceRange : ranges)
+			for (int k = 0; k < 4; k++)
+				range[k] = k % 2 == 0 ? Math.min(range[k], sliceRange[k]) : Math.max(range[k], sliceRange[k]);
+		for (int k = 0; k < 4 && complex; k++)
+			range[k] = Math.sqrt(range[k]);
+		float low = (float) range[0];
+		float span = (float) range[1] - low;
+		float fitLow = (float) range[2];
+		float fitRange = (float) range[3] - fitLow;
+		
+		IntStream.range(0, slices).parallel().forEach(s -> {
+			if (complex)
+				for (int i = s*sliceLength; i < (s + 1)*sliceLength; i += 2) {
+					float amp = (float)Math.sqrt((double)convolved[i] * convolved[i] + (double)convolved[i + 1] * convolved[i + 1]);
+					float fitted = span > 0 ? (amp - low)*fitRange/span + fitLow : fitLow;
+					convolved[i] = amp == 0 ? 0 : convolved[i] * fitted / amp;
+					convolved[i + 1] = amp == 0 ? 0 : convolved[i + 1] * fitted / amp;
+				}
+			else
+				for (int i = s*sliceLength; i < (s + 1)*sliceLength; i++) {
+					float amp = Math.abs(convolved[i]);
+					float fitted = span > 0 ? (amp - low)*fitRange/span + fitLow : fitLow;
+					convolved[i] = amp == 0 ? 0 : convolved[i] * fitted / amp;
+				}
+		});
+	}
+	
+	// the error of accumulateError without the volumes fitConvolution allocates: the blurred amplitudes are mapped onto
+	// the image's amplitude range as they are read. One pass finds both ranges and a second sums the differences.
+	// Interleaved complex data compares the real and imaginary parts of the fitted value. A zero amplitude fits to zero
+	// in both cases, as in fitAmplitudes
+	private void accumulateFittedError(float[] blurred, float[] image, boolean complex, float[] totals) {
+		int step = complex ? 2 : 1;
+		double blurredMin = Double.MAX_VALUE;
+		double blurredMax = -Double.MAX_VALUE;
+		double imageMin = Double.MAX_VALUE;
+		double imageMax = -Double.MAX_VALUE;
+		for (int i = 0; i < blurred.length; i += step) {
+			double b = amplitude(blurred, i, complex);
+			double g = amplitude(image, i, complex);
+			blurredMin = Math.min(blurredMin, b);
+			blurredMax = Math.max(blurredMax, b);
+			imageMin = Math.min(imageMin, g);
+			imageMax = Math.max(imageMax, g);
+		}
+		double fit = blurredMax > blurredMin ? (imageMax - imageMin) / (blurredMax - blurredMin) : 0;
 		
-		return difference / originalTotal;
+		double original = 0;
+		double difference = 0;
+		for (int i = 0; i < blurred.length; i += step) {
+			double b = amplitude(blurred, i, complex);
+			double fitted = b == 0 ? 0 : (b - blurredMin)*fit + imageMin;
+			if (complex) {
+				double ratio = b == 0 ? 0 : fitted / b;
+				original += Math.abs(image[i]) + Math.abs(image[i + 1]);
+				difference += Math.abs(Math.abs(blurred[i])*ratio - Math.abs(image[i])) + Math.abs(Math.abs(blurred[i + 1])*ratio - Math.abs(image[i + 1]));
+			}
+			else {
+				original += Math.abs(image[i]);
+				difference += Math.abs(fitted - Math.abs(image[i]));
+			}
+		}
+		
+		totals[0] += original;
+		totals[1] += difference;
+	}
+	
+	private static double amplitude(float[] data, int i, boolean complex) {
+		return complex ? Math.sqrt((double)data[i] * data[i] + (double)data[i + 1] * data[i + 1]) : Math.abs(data[i]);
 	}
 	
 	// find minimum of real matrix
@@ -798,6 +1224,25 @@ public class Deconvolve_Image_Utils {
 		return ret;
 	}
 	
+	// find minimum and maximum of a flat real volume
+	public float minOf(Real_Volume vol) {
+		float ret = vol.data[0];
+		for (int i = 1; i < vol.data.length; i++)
+			if (ret > vol.data[i])
+				ret = vol.data[i];
+		
+		return ret;
+	}
+	
+	public float maxOf(Real_Volume vol) {
+		float ret = vol.data[0];
+		for (int i = 1; i < vol.data.length; i++)
+			if (ret < vol.data[i])
+				ret = vol.data[i];
+		
+		return ret;
+	}
+	
 	// generate ID and title list of open images
 	public String[] imageList() {
 		String[] titles;
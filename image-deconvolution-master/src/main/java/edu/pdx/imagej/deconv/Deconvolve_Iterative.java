@@ -9,6 +9,16 @@
 package edu.pdx.imagej.deconv;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jtransforms.fft.FloatFFT_3D;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -18,6 +28,7 @@ import ij.gui.Plot;
 import ij.measure.Calibration;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
+import pl.edu.icm.jlargearrays.ConcurrencyUtils;
 
 public class Deconvolve_Iterative implements PlugInFilter {
 	protected ImagePlus image_amp;
@@ -30,6 +41,7 @@ public class Deconvolve_Iterative implements PlugInFilter {
 	private int slices;
 	private int frames;
 	private int iterations;
+	private float tolerance;
 	private String choice;
 	private String divisor;
 	private String decon_choice;
@@ -45,22 +57,39 @@ public class Deconvolve_Iterative implements PlugInFilter {
 	private String[] stack_list;
 	private String[] stack_list_phase;
 	private boolean getSNR;
+	private boolean snr_by_hand;
+	private boolean snr_per_frame;
 	private boolean normalizePSF;
 	private boolean decon_hyper;
 	private boolean save_files;
 	private boolean plot_error;
+	private boolean warm_start;
+	private boolean richardson_lucy;
+	private boolean accelerate;
+	private float tv_weight;
 	private float SNR;
-	private float[][][][] ampMat;
-	private float[][][][] phaseMat;
-	private float[][][][] imgMat;
-	private float[][][][] imgMatPhase;
-	private float[][][][] objMat;
-	private float[][][] psfMat;
-	private float[][][] psfPhaseMat;
+	// beta of the Custom Beta dialog, also used for frames whose SNR cannot be estimated
+	private static final float DEFAULT_BETA = 0.01f;
+	private float[] frameSNR;
+	private Complex_Volume[] imgMat;
+	private Real_Volume[] imgMatReal;
+	private Real_Volume[] imgMatPhase;
+	private Real_Volume[] objMat;
+	private Real_Volume psfMat;
+	private Real_Volume psfPhaseMat;
 	private float[] errors;
+	private float[][] errorTotals;
+	private int[] frameIterations;
+	private int parallelism = 1;
+	private Scratch scratch = new Scratch();
+	private AtomicInteger progress = new AtomicInteger();
+	private int progressTotal;
 	private Plot errorPlot;
+	private LongAdder fftCount = new LongAdder();
+	private LongAdder iterationCount = new LongAdder();
 	
 	private Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
+	private Complex_Kernels kernels = Complex_Kernels.create();
 
 	@Override
 	public int setup(String arg, ImagePlus imp) {
@@ -83,6 +112,7 @@ public class Deconvolve_Iterative implements PlugInFilter {
 	private boolean showDialog() {
 		String[] choices = {"8-bit", "16-bit", "32-bit"};
 		String[] decon_choices = {"Standard", "Complex (Polar)", "Complex (Rectangular)"};
+		String[] algorithms = {"Ratio update", "Richardson-Lucy"};
 		String[] image_list = diu.imageList();
 		GenericDialog gd = new GenericDialog("Deconvolution Setup");
 		gd.addChoice("Output image:", choices, "32-bit");
@@ -92,7 +122,15 @@ public class Deconvolve_Iterative implements PlugInFilter {
 		gd.addChoice("PSF amplitude/real image: ", image_list, image_list[image_list.length - 1]);
 		gd.addChoice("PSF phase/imaginary image: ", image_list, image_list[image_list.length - 1]);
 		gd.addNumericField("Iterations:", 3, 0);
+		gd.addNumericField("Stop at relative change (0 to run every iteration):", 0, 4);
+		gd.addCheckbox("Start each frame from the previous result?", false);
+		gd.addChoice("Algorithm:", algorithms, "Ratio update");
+		gd.addCheckbox("Accelerate Richardson-Lucy?", true);
+		gd.addNumericField("Richardson-Lucy TV weight (0 for none):", 0, 4);
+		gd.addNumericField("Frames in parallel:", Runtime.getRuntime().availableProcessors(), 0);
 		gd.addCheckbox("Get SNR?", false);
+		gd.addCheckbox("Select SNR regions by hand?", false);
+		gd.addCheckbox("SNR per frame?", false);
 		gd.addCheckbox("Normalize PSF?", true);
 		gd.addCheckbox("Deconvolve from files?", false);
 		gd.addCheckbox("Save by frame?", false);
@@ -110,7 +148,15 @@ public class Deconvolve_Iterative implements PlugInFilter {
 		PSF_amp_selection = gd.getNextChoice();
 		PSF_phase_selection = gd.getNextChoice();
 		iterations = (int) gd.getNextNumber();
+		tolerance = (float) gd.getNextNumber();
+		warm_start = gd.getNextBoolean();
+		richardson_lucy = "Richardson-Lucy".equals(gd.getNextChoice());
+		accelerate = gd.getNextBoolean();
+		tv_weight = (float) gd.getNextNumber();
+		parallelism = Math.max(1, (int) gd.getNextNumber());
 		getSNR = gd.getNextBoolean();
+		snr_by_hand = gd.getNextBoolean();
+		snr_per_frame = gd.getNextBoolean() && getSNR && !snr_by_hand;
 		normalizePSF = gd.getNextBoolean();
 		decon_hyper = !gd.getNextBoolean();
 		save_files = gd.getNextBoolean();
@@ -125,12 +171,22 @@ public class Deconvolve_Iterative implements PlugInFilter {
 			IJ.showMessage("Phase/Imaginary images are required for complex deconvolution.");
 			return showDialog();
 		}
+		if (richardson_lucy && decon_choice != "Standard") {
+			IJ.showMessage("Richardson-Lucy needs real, non-negative data. Please use the standard deconvolution style.");
+			return showDialog();
+		}
+		
+		// Richardson-Lucy has no SNR or beta
+		if (richardson_lucy) {
+			getSNR = false;
+			snr_per_frame = false;
+		}
 				
 		
 		// show dialog to obtain custom value of beta
-		if (!getSNR) {
+		if (!getSNR && !richardson_lucy) {
 			GenericDialog gd2 = new GenericDialog("Custom Beta");
-			gd2.addNumericField("Beta:", 0.01, 2);
+			gd2.addNumericField("Beta:", DEFAULT_BETA, 2);
 			
 			gd2.showDialog();
 			if (gd2.wasCanceled())
@@ -216,24 +272,35 @@ public class Deconvolve_Iterative implements PlugInFilter {
 		height = PSF_amp.getProcessor().getHeight();
 		slices = PSF_amp.getNSlices();
 		
-		if (getSNR) {
+		if (getSNR && snr_by_hand) {
 			// get signal-to-noise through user input
 			Noise_NP nnp = new Noise_NP();
 			float noiseDev = nnp.getNoise(image_amp);
 			float signal = nnp.getSignal(image_amp);
 			SNR = signal / noiseDev;
 		}
+		else if (getSNR) {
+			// estimate it from the amplitude image instead, one value per frame. Frames from files are estimated as
+			// they are read if they get their own SNR
+			IJ.showStatus("Estimating SNR...");
+			float[] snrs = new Noise_NP().estimateSNR(image_amp, 1 / DEFAULT_BETA);
+			if (snr_per_frame && decon_hyper)
+				frameSNR = snrs.clone();
+			SNR = Noise_NP.median(snrs);
+			IJ.log("Estimated SNR: " + Float.toString(SNR));
+		}
 		
 		IJ.showStatus("Preprocessing...");
+		scratch = new Scratch();
 		
 		// convert image stacks to matrices
-		psfMat = diu.getMatrix3D(PSF_amp);
+		psfMat = diu.getVolume(PSF_amp);
 		cal = PSF_amp.getCalibration();
 		
 		// get imaginary/phase component of the PSF
 		if (decon_choice != "Standard") {
 			PSF_phase = WindowManager.getImage(diu.getImageTitle(PSF_phase_selection));
-			psfPhaseMat = diu.getMatrix3D(PSF_phase);
+			psfPhaseMat = diu.getVolume(PSF_phase);
 		}
 		
 		// normalize PSF appropriately
@@ -245,12 +312,12 @@ public class Deconvolve_Iterative implements PlugInFilter {
 		// select proper deconvolution procedure
 		if (decon_hyper) {
 			// get imaginary/phase component of the original image
-			if (decon_choice != "Standard") {
+			if (decon_choice != "Standard")
 				image_phase = WindowManager.getImage(diu.getImageTitle(phase_selection));
-				phaseMat = diu.getMatrix4D(image_phase);
-			}
 			
-			if (save_files)
+			if (useFrameStore())
+				deconvolve_to_store();
+			else if (save_files)
 				save_from_hyperstack();
 			else
 				show_from_hyperstack();
@@ -261,25 +328,27 @@ public class Deconvolve_Iterative implements PlugInFilter {
 			else
 				show_from_files();
 		}	
+		
+		// the update divides by |blurred|^2 + 1/SNR, which overflows when the SNR is set too high
+		long saturated = kernels.getSaturationCount();
+		if (saturated > 0)
+			IJ.log("Iterative deconvolution: " + Long.toString(saturated) + " voxels saturated, consider a lower SNR.");
 	}
 	
 	// save deconvolved images by frame from a hyperstack
 	public void save_from_hyperstack() {
-		ampMat = diu.getMatrix4D(image_amp);
 		IJ.showStatus("Deconvolving hyperstack...");
-		
-		// deconvolve using the appropriate FFT form
-		if (decon_choice == "Standard")
-			deconvolve(diu.toFFTform(ampMat), diu.toFFTform(psfMat));
-		else if (decon_choice == "Complex (Polar)") 	
-			deconvolve(diu.toFFTform(ampMat, phaseMat), diu.toFFTform(psfMat, psfPhaseMat));
-		else		
-			deconvolve(diu.toFFTformRect(ampMat, phaseMat), diu.toFFTform(psfMat, psfPhaseMat));
+		deconvolve_hyperstack(preparePSF());
+		logIterations(0);
 		
 		// save images by frame
 		IJ.showStatus("Saving images...");
 		for (int i = 0; i < frames; i++) {
-			ImagePlus tempImg = diu.reassign(diu.getAmplitudeMat(imgMat[i]), choice, Integer.toString(i));
+			ImagePlus tempImg;
+			if (decon_choice == "Standard")
+				tempImg = diu.reassign(diu.getAmplitudeMat(imgMatReal[i]), choice, Integer.toString(i));
+			else
+				tempImg = diu.reassign(diu.getAmplitudeMat(imgMat[i]), choice, Integer.toString(i));
 			tempImg.setCalibration(cal);
 			
 			if (decon_choice == "Standard")
@@ -313,93 +382,71 @@ public class Deconvolve_Iterative implements PlugInFilter {
 		}
 	}
 	
-	// save deconvolved images by frame from stored images
+	// save deconvolved images by frame from stored images. The next stacks are read and the previous results saved while
+	// each frame is deconvolved
 	public void save_from_files() {
-		ampMat = new float[1][slices][height][width];
-		if (decon_choice != "Standard")
-			phaseMat = new float[1][slices][height][width];
-		
-		// loop through images in folder
-		for (int i = 0; i < stack_list.length; i++) {
-			IJ.showStatus("Processing frame " + Integer.toString(i + 1) + " of " + Integer.toString(stack_list.length) + "...");
-			ImagePlus tempImg = IJ.openImage(stack_path + stack_list[i]);
-			ampMat = diu.getMatrix4D(tempImg);
-			tempImg.close();
-			
-			// deconvolve and save in appropriate folder
-			if (decon_choice == "Standard") {
-				ampMat = diu.toFFTform(ampMat);
-				psfMat = diu.toFFTform(psfMat);
-				deconvolve(ampMat, psfMat);
-				
-				tempImg = diu.reassign(diu.getAmplitudeMat(imgMat), choice, Integer.toString(i));
-				tempImg.setCalibration(cal);
-				IJ.saveAsTiff(tempImg, save_path + Integer.toString(i) + ".tif");
-				tempImg.close();
-			}
-			else if (decon_choice == "Complex (Polar)") {
-				ImagePlus phaseImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-				phaseMat = diu.getMatrix4D(phaseImg);
-				phaseImg.close();
-				
-				deconvolve(diu.toFFTform(ampMat, phaseMat), diu.toFFTform(psfMat, psfPhaseMat));
-				
-				tempImg = diu.reassign(diu.getAmplitudeMat(imgMat), choice, Integer.toString(i));
-				tempImg.setCalibration(cal);
-				IJ.saveAsTiff(tempImg, save_path + "Amplitude" + divisor + Integer.toString(i) + ".tif");
-				
-				if (choice == "GRAY32")
-					tempImg = diu.reassign(diu.getPhaseMat(imgMat), choice, Integer.toString(i));
-				else
-					tempImg = diu.reassign(diu.scaleMat(diu.increment(diu.getPhaseMat(imgMat), (float)Math.PI), (float) (255 / 2 / Math.PI)), choice, Integer.toString(i));
-				
-				tempImg.setCalibration(cal);
-				IJ.saveAsTiff(tempImg, save_path + "Phase" + divisor + Integer.toString(i) + ".tif");
-				tempImg.close();
-			}
-			else {
-				ImagePlus imImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-				phaseMat = diu.getMatrix4D(imImg);
-				imImg.close();
+		Prepared_PSF psf = preparePSF();
+		try (File_Pipeline<Real_Volume[]> files = openFiles()) {
+			while (files.hasNext()) {
+				File_Pipeline.Frame<Real_Volume[]> frame = files.next();
+				int i = frame.index;
+				if (snr_per_frame)
+					frameSNR = new Noise_NP().estimateSNR(frame.amp, 1 / DEFAULT_BETA);
+				IJ.showStatus("Processing frame " + Integer.toString(i + 1) + " of " + Integer.toString(stack_list.length) + "...");
 				
-				deconvolve(diu.toFFTformRect(ampMat, phaseMat), diu.toFFTformRect(psfMat, psfPhaseMat));
+				// deconvolve and queue the results for saving, every deconvolve call leaves its result in new arrays
+				if (decon_choice == "Standard") {
+					deconvolve(frame.amp, psf);
+					Real_Volume[] result = imgMatReal;
+					files.write(() -> save_frame(diu.getAmplitudeMat(result), "", i));
+				}
+				else if (decon_choice == "Complex (Polar)") {
+					deconvolve(diu.toFFTform(frame.amp, frame.phase), psf);
+					Complex_Volume[] result = imgMat;
+					files.write(() -> {
+						save_frame(diu.getAmplitudeMat(result), "Amplitude" + divisor, i);
+						if (choice == "GRAY32")
+							save_frame(diu.getPhaseMat(result), "Phase" + divisor, i);
+						else
+							save_frame(diu.scaleMat(diu.increment(diu.getPhaseMat(result), (float)Math.PI), (float) (255 / 2 / Math.PI)), "Phase" + divisor, i);
+					});
+				}
+				else {
+					deconvolve(diu.toFFTformRect(frame.amp, frame.phase), psf);
+					Complex_Volume[] result = imgMat;
+					files.write(() -> {
+						save_frame(diu.getReMat(result), "Real" + divisor, i);
+						save_frame(diu.getImMat(result), "Imaginary" + divisor, i);
+					});
+				}
 				
-				tempImg = diu.reassign(diu.getReMat(imgMat), choice, Integer.toString(i));
-				tempImg.setCalibration(cal);
-				IJ.saveAsTiff(tempImg, save_path + "Real" + divisor + Integer.toString(i) + ".tif");
+				logIterations(i);
 				
-				tempImg = diu.reassign(diu.getImMat(imgMat), choice, Integer.toString(i));
-				tempImg.setCalibration(cal);
-				IJ.saveAsTiff(tempImg, save_path + "Imaginary" + divisor + Integer.toString(i) + ".tif");
-				tempImg.close();
+				// the plot is drawn here since the errors are overwritten by the next frame
+				if (plot_error) {
+					errorPlot = plotError();
+					ImagePlus errorImg = errorPlot.getImagePlus();
+					files.write(() -> IJ.saveAsTiff(errorImg, save_path + "Error" + divisor + Integer.toString(i) + ".tif"));
+				}
 			}
-			
-			if (plot_error) {
-				errorPlot = plotError();
-				tempImg = errorPlot.getImagePlus();
-				IJ.saveAsTiff(tempImg, save_path + "Error" + divisor + Integer.toString(i) + ".tif");
-			}	
 		}
 	}
 	
 	// open deconvolved images from currently open hyperstack
 	public void show_from_hyperstack() {
-		ampMat = diu.getMatrix4D(image_amp);
 		IJ.showStatus("Deconvolving hyperstack...");
+		deconvolve_hyperstack(preparePSF());
 		
 		if (decon_choice == "Standard") {
-			deconvolve(diu.toFFTform(ampMat), diu.toFFTform(psfMat));
 			
 			IJ.showStatus("Constructing result...");
-			ImagePlus tempImage = diu.reassign(diu.getAmplitudeMat(imgMat), choice, "Result");
+			ImagePlus tempImage = diu.reassign(diu.getAmplitudeMat(imgMatReal), choice, "Result");
 			tempImage.setCalibration(cal);
 		
 			tempImage.show();
 		}
 		
 		else if (decon_choice == "Complex (Polar)") {
-			deconvolve(diu.toFFTform(ampMat, phaseMat), diu.toFFTform(psfMat, psfPhaseMat));
-			
 			IJ.showStatus("Constructing result...");
 			ImagePlus ampImage = diu.reassign(diu.getAmplitudeMat(imgMat), choice, "Amplitude");
 			ampImage.setCalibration(cal);
@@ -416,8 +463,6 @@ public class Deconvolve_Iterative implements PlugInFilter {
 		}
 		
 		else {
-			deconvolve(diu.toFFTform(ampMat, phaseMat), diu.toFFTform(psfMat, psfPhaseMat));
-			
 			IJ.showStatus("Constructing result...");
 			ImagePlus reImage = diu.reassign(diu.getReMat(imgMat), choice, "Real");
 			reImage.setCalibration(cal);
@@ -427,6 +472,7 @@ public class Deconvolve_Iterative implements PlugInFilter {
 			imImage.setCalibration(cal);
 			imImage.show();
 		}
+		logIterations(0);
 		
 		if (plot_error) {
 			errorPlot = plotError();
@@ -435,43 +481,37 @@ public class Deconvolve_Iterative implements PlugInFilter {
 	}
 	
 	public void show_from_files() {
-		objMat = new float[stack_list.length][slices][height][width];
-		ampMat = new float[1][slices][height][width];
+		Prepared_PSF psf = preparePSF();
+		objMat = new Real_Volume[stack_list.length];
 		
-		if (decon_choice != "Standard") {
-			imgMatPhase = new float[stack_list.length][slices][height][width];
-			phaseMat = new float[1][slices][height][width];
-		}
+		if (decon_choice != "Standard")
+			imgMatPhase = new Real_Volume[stack_list.length];
 		
-		for (int i = 0; i < stack_list.length; i++) {
-			IJ.showStatus("Processing frame " + Integer.toString(i + 1) + " of " + Integer.toString(stack_list.length) + "...");
-			ImagePlus tempImg = IJ.openImage(stack_path + stack_list[i]);
-			ampMat = diu.getMatrix4D(tempImg);
-			tempImg.close();
-			
-			if (decon_choice == "Standard") {
-				deconvolve(diu.toFFTform(ampMat), diu.toFFTform(psfMat));
-				objMat[i] = diu.getAmplitudeMat(imgMat)[0];
-				tempImg.close();
-			}
-			else if (decon_choice == "Complex (Polar)") {
-				ImagePlus phaseImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-				phaseMat = diu.getMatrix4D(phaseImg);
-				phaseImg.close();
+		// the next stacks are read in the background while each frame is deconvolved
+		try (File_Pipeline<Real_Volume[]> files = openFiles()) {
+			while (files.hasNext()) {
+				File_Pipeline.Frame<Real_Volume[]> frame = files.next();
+				int i = frame.index;
+				if (snr_per_frame)
+					frameSNR = new Noise_NP().estimateSNR(frame.amp, 1 / DEFAULT_BETA);
+				IJ.showStatus("Processing frame " + Integer.toString(i + 1) + " of " + Integer.toString(stack_list.length) + "...");
 				
-				deconvolve(diu.toFFTform(ampMat, phaseMat), diu.toFFTform(psfMat, psfPhaseMat));
-				objMat[i] = diu.getAmplitudeMat(imgMat)[0];
-				imgMatPhase[i] = diu.getPhaseMat(imgMat)[0];
+				if (decon_choice == "Standard") {
+					deconvolve(frame.amp, psf);
+					objMat[i] = diu.getAmplitudeMat(imgMatReal)[0];
+				}
+				else if (decon_choice == "Complex (Polar)") {
+					deconvolve(diu.toFFTform(frame.amp, frame.phase), psf);
+					objMat[i] = diu.getAmplitudeMat(imgMat)[0];
+					imgMatPhase[i] = diu.getPhaseMat(imgMat)[0];
+				}
+				else {
+					deconvolve(diu.toFFTformRect(frame.amp, frame.phase), psf);
+					objMat[i] = diu.getReMat(imgMat)[0];
+					imgMatPhase[i] = diu.getImMat(imgMat)[0];
+				}
+				logIterations(i);
 			}
-			else {
-				ImagePlus imImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-				phaseMat = diu.getMatrix4D(imImg);
-				imImg.close();
-				
-				deconvolve(diu.toFFTformRect(ampMat, phaseMat), diu.toFFTformRect(psfMat, psfPhaseMat));
-				objMat[i] = diu.getReMat(imgMat)[0];
-				imgMatPhase[i] = diu.getImMat(imgMat)[0];
-			}		
 		}
 		
 		if (decon_choice == "Standard") {
@@ -511,27 +551,437 @@ public class Deconvolve_Iterative implements PlugInFilter {
 	}
 
 	// standard iterative deconvolution. assumes image and psf are already in FFT form
-	public void deconvolve(float[][][][] image, float[][][] psf) {
-		int count = 0;
-		imgMat = new float[image.length][image[0].length][image[0][0].length][image[0][0][0].length];
-		float[][][][] blurredMat = new float[image.length][image[0].length][image[0][0].length][image[0][0][0].length];
-		imgMat = diu.scaleMat(image, 1);
+	public void deconvolve(Complex_Volume[] image, Complex_Volume psf) {
+		deconvolve(image, new Prepared_PSF(psf));
+	}
+	
+	// same as above with a PSF that has already been transformed. Each frame is taken through all of the iterations
+	// on one of the workers, see forEachFrame
+	public void deconvolve(Complex_Volume[] image, Prepared_PSF psf) {
+		errorTotals = new float[iterations][2];
+		frameIterations = new int[image.length];
+		imgMat = new Complex_Volume[image.length];
+		forEachFrame(image.length, (j, buffers) -> imgMat[j] = deconvolveFrame(image[j], psf, j, buffers));
+		finishErrors();
+	}
+	
+	// standard iterative deconvolution of real data. Same update as above, but the convolutions use the real
+	// transform and the elementwise update stays real
+	public void deconvolve(Real_Volume[] image, Real_Volume psf) {
+		deconvolve(image, richardson_lucy ? Richardson_Lucy.preparePSF(psf) : new Prepared_PSF(psf));
+	}
+	
+	// same as above with a PSF that has already been transformed
+	public void deconvolve(Real_Volume[] image, Prepared_PSF psf) {
+		errorTotals = new float[iterations][2];
+		frameIterations = new int[image.length];
+		imgMatReal = new Real_Volume[image.length];
+		forEachFrame(image.length, (j, buffers) -> imgMatReal[j] = deconvolveFrame(image[j], psf, j, buffers));
+		finishErrors();
+	}
+	
+	// deconvolve the open hyperstack into imgMatReal or imgMat. Frames are read by the workers as they pick them up, so
+	// only the frames being deconvolved and the results are on the heap
+	private void deconvolve_hyperstack(Prepared_PSF psf) {
+		errorTotals = new float[iterations][2];
+		frameIterations = new int[frames];
+		if (decon_choice == "Standard") {
+			imgMatReal = new Real_Volume[frames];
+			forEachFrame(frames, (i, buffers) -> imgMatReal[i] = deconvolveFrame(diu.getVolume(image_amp, i), psf, i, buffers));
+		}
+		else {
+			imgMat = new Complex_Volume[frames];
+			forEachFrame(frames, (i, buffers) -> imgMat[i] = deconvolveFrame(readComplexFrame(i), psf, i, buffers));
+		}
+		finishErrors();
+	}
+	
+	// frame i of the open amplitude and phase (or real and imaginary) images in FFT form
+	private Complex_Volume readComplexFrame(int i) {
+		Real_Volume amp = diu.getVolume(image_amp, i);
+		Real_Volume phase = diu.getVolume(image_phase, i);
+		return decon_choice == "Complex (Polar)" ? diu.toFFTform(amp, phase) : diu.toFFTformRect(amp, phase);
+	}
+	
+	// run task for count frames. Every worker has its own Scratch, and parallelism workers take frames as they finish
+	// others; JTransforms gets a share of its threads per worker so the workers do not oversubscribe the cores. With
+	// warm start every worker takes one run of consecutive frames instead, and starts it from scratch. A single worker
+	// uses the engine's own Scratch, so warm start also carries over between calls (frames from files)
+	private void forEachFrame(int count, Frame_Task task) {
+		progress.set(0);
+		progressTotal = iterations * count;
+		if (parallelism == 1 || count == 1) {
+			for (int i = 0; i < count; i++)
+				task.run(i, scratch);
+			return;
+		}
+		
+		int workers = Math.min(parallelism, count);
+		int chunk = warm_start ? (count + workers - 1) / workers : 1;
+		int fftThreads = ConcurrencyUtils.getNumberOfThreads();
+		ConcurrencyUtils.setNumberOfThreads(Math.max(1, fftThreads / workers));
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		AtomicInteger next = new AtomicInteger();
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int w = 0; w < workers; w++)
+				futures.add(executor.submit(() -> {
+					Scratch buffers = new Scratch();
+					for (int first = chunk * next.getAndIncrement(); first < count; first = chunk * next.getAndIncrement()) {
+						buffers.previousReal = null;
+						buffers.previousComplex = null;
+						for (int i = first; i < Math.min(first + chunk, count); i++)
+							task.run(i, buffers);
+					}
+				}));
+			
+			for (Future<?> future : futures)
+				future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Deconvolution was interrupted.", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+			ConcurrencyUtils.setNumberOfThreads(fftThreads);
+		}
+	}
+	
+	// SNR of the given frame, which is estimated per frame if the user asked for it
+	private float snrFor(int frame) {
+		return frameSNR == null ? SNR : frameSNR[frame];
+	}
+	
+	// iterate one complex frame, frame picks the SNR and the progress. The update is elementwise in space, so the
+	// estimate has to go through one forward and one inverse transform per iteration; the PSF's spectrum is only
+	// looked up, and the buffers come from the worker's Scratch. With warm start the estimate starts from the worker's
+	// last result, unless that has another shape, otherwise from the image
+	private Complex_Volume deconvolveFrame(Complex_Volume image, Prepared_PSF psf, int frame, Scratch buffers) {
+		if (buffers.next == null || !buffers.next.sameShape(image)) {
+			buffers.next = new Complex_Volume(image.slices, image.height, image.width);
+			buffers.blurred = new Complex_Volume(image.slices, image.height, image.width);
+			buffers.blurredPower = new Complex_Volume(image.slices, image.height, image.width);
+			buffers.fft3D = new FloatFFT_3D((long)image.slices, (long)image.height, (long)image.width);
+		}
+		Complex_Volume start = warm_start ? buffers.previousComplex : null;
+		Complex_Volume obj = start != null && start.sameShape(image) ? start.copy() : image.copy();
+		Complex_Volume next = buffers.next;
+		Complex_Volume blurred = buffers.blurred;
+		Complex_Volume blurredPower = buffers.blurredPower;
+		float[] totals = new float[2];
 		for (int i = 0; i < iterations; i++) {
-			for (int j = 0; j < image.length; j++) {
-				IJ.showProgress(count, iterations*frames);
-				count++;
-				
-				// perform deconvolution operations
-				blurredMat[j] = diu.fourierConvolve(imgMat[j], psf);
-				diu.fitConvolution(blurredMat[j], image[j]);
-				
-				imgMat[j] = diu.matrixOperations(imgMat[j], image[j], "multiply");
-				imgMat[j] = diu.matrixOperations(imgMat[j], diu.complexConj(blurredMat[j]), "multiply");
-				imgMat[j] = diu.matrixOperations(imgMat[j], diu.incrementComplex(diu.matrixOperations(blurredMat[j], diu.complexConj(blurredMat[j]), "multiply"), 1/SNR), "divide");
+			IJ.showProgress(progress.incrementAndGet(), progressTotal);
+			
+			// perform deconvolution operations
+			blurred = blur(obj, psf, blurred, buffers.fft3D);
+			diu.fitConvolution(blurred, image);
+			
+			// next = obj * image * conj(blurred) / (|blurred|^2 + 1/SNR), then next becomes obj
+			kernels.apply(Complex_Kernels.Operation.MULTIPLY, obj, image, next);
+			kernels.apply(Complex_Kernels.Operation.CONJ_MULTIPLY, blurred, next, next);
+			kernels.apply(Complex_Kernels.Operation.ABS_SQUARED, blurred, null, blurredPower);
+			kernels.apply(Complex_Kernels.Operation.ADD_SCALAR_DIVIDE, next, blurredPower, 1/snrFor(frame), next);
+			double change = relativeChange(obj.data, next.data);
+			Complex_Volume temp = obj;
+			obj = next;
+			next = temp;
+			
+			if (plot_error)
+				accumulateError(blurred, image, totals = new float[2]);
+			if (finishIteration(frame, i, change, totals))
+				break;
+		}
+		
+		// obj may be the buffer next started as, then the worker keeps the other one
+		buffers.next = next;
+		if (warm_start)
+			buffers.previousComplex = obj;
+		return obj;
+	}
+	
+	// iterate one frame of real data, starting as above
+	private Real_Volume deconvolveFrame(Real_Volume image, Prepared_PSF psf, int frame, Scratch buffers) {
+		Real_Volume start = warm_start ? buffers.previousReal : null;
+		if (start != null && !start.sameShape(image))
+			start = null;
+		Real_Volume result = richardson_lucy ? richardsonLucyFrame(image, psf, frame, start, buffers) : ratioUpdateFrame(image, psf, frame, start, buffers);
+		if (warm_start)
+			buffers.previousReal = result;
+		
+		return result;
+	}
+	
+	// the ratio update of one frame of real data, from start if it is not null
+	private Real_Volume ratioUpdateFrame(Real_Volume image, Prepared_PSF psf, int frame, Real_Volume start, Scratch buffers) {
+		Real_FFT_3D fft = FFT_Cache.real(image.slices, image.height, image.width);
+		if (buffers.blurredReal == null || !buffers.blurredReal.sameShape(image)) {
+			buffers.blurredReal = new Real_Volume(image.slices, image.height, image.width);
+			buffers.spectrum = fft.newSpectrum();
+		}
+		Complex_Volume spectrum = buffers.spectrum;
+		Real_Volume objVol = start != null ? start.copy() : image.copy();
+		Real_Volume blurredVol = buffers.blurredReal;
+		double beta = 1/snrFor(frame);
+		float[] totals = new float[2];
+		for (int i = 0; i < iterations; i++) {
+			IJ.showProgress(progress.incrementAndGet(), progressTotal);
+			
+			// perform deconvolution operations
+			blurredVol = blur(objVol, psf, fft, spectrum, blurredVol);
+			diu.fitConvolution(blurredVol, image);
+			
+			// obj = obj * image * blurred / (blurred^2 + 1/SNR), measuring the change on the way
+			float[] obj = objVol.data;
+			float[] img = image.data;
+			float[] blurred = blurredVol.data;
+			double changed = 0;
+			double total = 0;
+			for (int k = 0; k < obj.length; k++) {
+				double b = blurred[k];
+				float updated = (float)(obj[k] * (double)img[k] * b / (b*b + beta));
+				changed += (double)(updated - obj[k]) * (updated - obj[k]);
+				total += (double)updated * updated;
+				obj[k] = updated;
 			}
+			
+			if (plot_error)
+				accumulateError(blurredVol, image, totals = new float[2]);
+			if (finishIteration(frame, i, total > 0 ? Math.sqrt(changed / total) : 0, totals))
+				break;
+		}
+		
+		return objVol;
+	}
+	
+	// iterate one frame of real data with Richardson-Lucy, psf is from Richardson_Lucy.preparePSF. The error is measured
+	// on the blurred point each step started from, which is already on the scale of the image. The worker keeps its
+	// engine, and so its buffers, for as long as the PSF stays the same
+	private Real_Volume richardsonLucyFrame(Real_Volume image, Prepared_PSF psf, int frame, Real_Volume start, Scratch buffers) {
+		if (buffers.rl == null || buffers.rlPSF != psf) {
+			buffers.rl = new Richardson_Lucy(psf, accelerate, tv_weight);
+			buffers.rlPSF = psf;
+		}
+		Richardson_Lucy rl = buffers.rl;
+		long ffts = rl.getFFTCount();
+		rl.start(image, start);
+		float[] totals = new float[2];
+		for (int i = 0; i < iterations; i++) {
+			IJ.showProgress(progress.incrementAndGet(), progressTotal);
+			rl.step();
 			if (plot_error)
-				errors[i] = getError(diu.getAmplitudeMat(blurredMat), diu.getAmplitudeMat(image));
+				accumulateError(rl.getBlurred(), image, totals = new float[2]);
+			if (finishIteration(frame, i, rl.getRelativeChange(), totals))
+				break;
+		}
+		fftCount.add(rl.getFFTCount() - ffts);
+		
+		return rl.getEstimate();
+	}
+	
+	// bookkeeping after iteration i of a frame, totals are the frame's error totals for it. Returns true when the estimate
+	// changed by less than the tolerance, then the remaining iterations are skipped. The error of a stopped frame stays
+	// in the plot for the iterations it skipped, since its estimate no longer changes. Called from the workers
+	private boolean finishIteration(int frame, int i, double change, float[] totals) {
+		iterationCount.increment();
+		frameIterations[frame] = i + 1;
+		boolean converged = tolerance > 0 && change < tolerance;
+		int last = converged ? iterations - 1 : i;
+		if (plot_error)
+			synchronized (errorTotals) {
+				for (int k = i; k <= last; k++) {
+					errorTotals[k][0] += totals[0];
+					errorTotals[k][1] += totals[1];
+				}
+			}
+		
+		return converged;
+	}
+	
+	// |next - obj| / |next| over interleaved complex data
+	private static double relativeChange(float[] obj, float[] next) {
+		double changed = 0;
+		double total = 0;
+		for (int k = 0; k < obj.length; k++) {
+			changed += (double)(next[k] - obj[k]) * (next[k] - obj[k]);
+			total += (double)next[k] * next[k];
+		}
+		
+		return total > 0 ? Math.sqrt(changed / total) : 0;
+	}
+	
+	// log how many iterations each frame of the last deconvolve call took, firstFrame is the number of its first frame
+	private void logIterations(int firstFrame) {
+		if (tolerance <= 0)
+			return;
+		
+		for (int j = 0; j < frameIterations.length; j++)
+			if (frameIterations[j] > 0)
+				IJ.log("Frame " + Integer.toString(firstFrame + j + 1) + ": " + Integer.toString(frameIterations[j]) + " of " + Integer.toString(iterations) + " iterations");
+	}
+	
+	// iterations each frame of the last deconvolve call took
+	public int[] getFrameIterations() {
+		return frameIterations;
+	}
+	
+	// obj convolved with the PSF into blurred, using the OTF that was transformed once and the worker's plan. Returns
+	// blurred, or a new volume when the PSF could not fold in the formatIFFT shift (odd sizes)
+	private Complex_Volume blur(Complex_Volume obj, Prepared_PSF psf, Complex_Volume blurred, FloatFFT_3D fft3D) {
+		if (!psf.matches(obj))
+			throw new IllegalArgumentException("The PSF was not prepared for complex volumes of this size.");
+		
+		System.arraycopy(obj.data, 0, blurred.data, 0, obj.data.length);
+		fft3D.complexForward(blurred.data);
+		kernels.apply(Complex_Kernels.Operation.MULTIPLY, blurred, psf.getOTF(), blurred);
+		fft3D.complexInverse(blurred.data, true);
+		fftCount.add(2);
+		
+		return psf.isShifted() ? blurred : diu.formatIFFT(blurred);
+	}
+	
+	// same for real data, through the half spectrum
+	private Real_Volume blur(Real_Volume obj, Prepared_PSF psf, Real_FFT_3D fft, Complex_Volume spectrum, Real_Volume blurred) {
+		if (!psf.matches(obj))
+			throw new IllegalArgumentException("The PSF was not prepared for real volumes of this size.");
+		
+		fft.forward(obj, spectrum);
+		kernels.apply(Complex_Kernels.Operation.MULTIPLY, spectrum, psf.getOTF(), spectrum);
+		fft.inverse(spectrum, blurred);
+		fftCount.add(2);
+		
+		return psf.isShifted() ? blurred : diu.formatIFFT(blurred);
+	}
+	
+	// 3D transforms done by this engine so far, the PSF's own transform not included
+	public long getFFTCount() {
+		return fftCount.sum();
+	}
+	
+	// transforms per iteration of a single frame, 2 for the ratio update and 4 for Richardson-Lucy
+	public double getFFTsPerIteration() {
+		long count = iterationCount.sum();
+		return count == 0 ? 0 : (double) fftCount.sum() / count;
+	}
+	
+	// hyperstacks too large for the heap are deconvolved one frame at a time into memory-mapped scratch files, then
+	// saved frame by frame or shown as a virtual stack
+	public void deconvolve_to_store() {
+		Prepared_PSF psf = preparePSF();
+		Frame_Store results = new Frame_Store(frames, slices, height, width);
+		Frame_Store phaseResults = decon_choice == "Standard" ? null : new Frame_Store(frames, slices, height, width);
+		errorTotals = new float[iterations][2];
+		frameIterations = new int[frames];
+		IJ.showStatus("Deconvolving hyperstack...");
+		
+		forEachFrame(frames, (i, buffers) -> {
+			if (decon_choice == "Standard") {
+				results.put(i, diu.getAmplitudeMat(deconvolveFrame(diu.getVolume(image_amp, i), psf, i, buffers)));
+				return;
+			}
+			
+			Complex_Volume obj = deconvolveFrame(readComplexFrame(i), psf, i, buffers);
+			if (decon_choice == "Complex (Polar)") {
+				results.put(i, diu.getAmplitudeMat(obj));
+				if (choice == "GRAY32")
+					phaseResults.put(i, diu.getPhaseMat(obj));
+				else
+					phaseResults.put(i, diu.scaleMat(diu.increment(diu.getPhaseMat(obj), (float)Math.PI), (float) (255 / 2 / Math.PI)));
+			}
+			else {
+				results.put(i, diu.getReMat(obj));
+				phaseResults.put(i, diu.getImMat(obj));
+			}
+		});
+		finishErrors();
+		logIterations(0);
+		
+		String[] names;
+		if (decon_choice == "Standard")
+			names = new String[] {"Result"};
+		else if (decon_choice == "Complex (Polar)")
+			names = new String[] {"Amplitude", "Phase"};
+		else
+			names = new String[] {"Real", "Imaginary"};
+		Frame_Store[] stores = {results, phaseResults};
+		
+		if (save_files) {
+			IJ.showStatus("Saving images...");
+			for (int i = 0; i < frames; i++)
+				for (int j = 0; j < names.length; j++) {
+					ImagePlus tempImg = diu.reassign(stores[j].get(i), choice, Integer.toString(i));
+					tempImg.setCalibration(cal);
+					if (decon_choice == "Standard")
+						IJ.saveAsTiff(tempImg, save_path + Integer.toString(i) + ".tif");
+					else
+						IJ.saveAsTiff(tempImg, save_path + names[j] + divisor + Integer.toString(i) + ".tif");
+				}
+			
+			results.close();
+			if (phaseResults != null)
+				phaseResults.close();
+			
+			// the same plot goes with every frame, like save_from_hyperstack does
+			if (plot_error) {
+				errorPlot = plotError();
+				for (int i = 0; i < frames; i++)
+					IJ.saveAsTiff(errorPlot.getImagePlus(), save_path + "Error" + divisor + Integer.toString(i) + ".tif");
+			}
 		}
+		else {
+			// the shown images read their slices from the stores, which are closed when the images are
+			IJ.showStatus("Constructing result...");
+			for (int j = 0; j < names.length; j++) {
+				ImagePlus tempImg = diu.reassign(stores[j], choice, names[j]);
+				tempImg.setCalibration(cal);
+				tempImg.show();
+			}
+			
+			if (plot_error) {
+				errorPlot = plotError();
+				errorPlot.show();
+			}
+		}
+	}
+	
+	// the results and the images made from them have to fit on the heap at once, as well as every worker's frame and
+	// buffers (at most about 8 volumes' worth, for Richardson-Lucy or complex data)
+	private boolean useFrameStore() {
+		long volume = 4L * width * height * slices;
+		long bytes = volume * frames * (decon_choice == "Standard" ? 2 : 4) + volume * 8 * Math.min(parallelism, frames);
+		return !Frame_Store.fitsInHeap(bytes);
+	}
+	
+	// reader/writer pipeline over the stack folders, the phase folder is only read for complex deconvolution
+	private File_Pipeline<Real_Volume[]> openFiles() {
+		if (decon_choice == "Standard")
+			return new File_Pipeline<Real_Volume[]>(stack_path, stack_list, null, null, diu::getVolumes);
+		return new File_Pipeline<Real_Volume[]>(stack_path, stack_list, stack_path_phase, stack_list_phase, diu::getVolumes);
+	}
+	
+	// reassign one result and save it as frame i, runs on the pipeline's writer thread
+	private void save_frame(Real_Volume[] vols, String folder, int i) {
+		ImagePlus tempImg = diu.reassign(vols, choice, Integer.toString(i));
+		tempImg.setCalibration(cal);
+		IJ.saveAsTiff(tempImg, save_path + folder + Integer.toString(i) + ".tif");
+		tempImg.close();
+	}
+	
+	// transform the PSF once for the chosen type of deconvolution, it is then used by every iteration and file
+	private Prepared_PSF preparePSF() {
+		if (richardson_lucy)
+			return Richardson_Lucy.preparePSF(psfMat);
+		else if (decon_choice == "Standard")
+			return new Prepared_PSF(psfMat);
+		else if (decon_choice == "Complex (Polar)")
+			return new Prepared_PSF(diu.toFFTform(psfMat, psfPhaseMat));
+		else
+			return new Prepared_PSF(diu.toFFTformRect(psfMat, psfPhaseMat));
 	}
 	
 	// create plot from list of errors
@@ -548,19 +998,32 @@ public class Deconvolve_Iterative implements PlugInFilter {
 		return plot;
 	}
 	
-	// calculate error using differences between the blurred guess and original image
-	private float getError(float[][][][] guess, float[][][][] original) {
-		float originalTotal = 0;
-		float difference = 0;
-		for (int i = 0; i < frames; i++)
-			for (int j = 0; j < slices; j ++)
-				for (int k = 0; k < height; k++)
-					for (int l = 0; l < width; l++) {
-						originalTotal += Math.abs(original[i][j][k][l]);
-						difference += Math.abs(Math.abs(guess[i][j][k][l]) - Math.abs(original[i][j][k][l]));
-					}
-		
-		return difference / originalTotal;
+	// add one frame's differences between the amplitudes of the blurred guess and original image to totals,
+	// {sum of |original|, sum of differences}
+	private void accumulateError(Real_Volume guess, Real_Volume original, float[] totals) {
+		for (int j = 0; j < original.size(); j++) {
+			totals[0] += Math.abs(original.data[j]);
+			totals[1] += Math.abs(Math.abs(guess.data[j]) - Math.abs(original.data[j]));
+		}
+	}
+	
+	// complex version, the amplitudes are computed as they are summed
+	private void accumulateError(Complex_Volume guess, Complex_Volume original, float[] totals) {
+		float[] g = guess.data;
+		float[] o = original.data;
+		for (int j = 0; j < o.length; j += 2) {
+			double originalAmp = Math.sqrt((double)o[j] * o[j] + (double)o[j + 1] * o[j + 1]);
+			double guessAmp = Math.sqrt((double)g[j] * g[j] + (double)g[j + 1] * g[j + 1]);
+			totals[0] += originalAmp;
+			totals[1] += Math.abs(guessAmp - originalAmp);
+		}
+	}
+	
+	// turn the totals of every iteration into errors
+	private void finishErrors() {
+		if (plot_error)
+			for (int i = 0; i < iterations; i++)
+				errors[i] = errorTotals[i][1] / errorTotals[i][0];
 	}
 	
 	public void showAbout() {
@@ -568,4 +1031,23 @@ public class Deconvolve_Iterative implements PlugInFilter {
 			"Deconvolves DHM images using the Wiener filter."
 		);
 	}
+	
+	// one worker's buffers, allocated for its first frame and kept while the frames have the same shape. With warm start
+	// it also holds the worker's last result
+	private static class Scratch {
+		Complex_Volume next;
+		Complex_Volume blurred;
+		Complex_Volume blurredPower;
+		FloatFFT_3D fft3D;
+		Complex_Volume spectrum;
+		Real_Volume blurredReal;
+		Richardson_Lucy rl;
+		Prepared_PSF rlPSF;
+		Real_Volume previousReal;
+		Complex_Volume previousComplex;
+	}
+	
+	private interface Frame_Task {
+		void run(int frame, Scratch buffers);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jtransforms.fft.FloatFFT_3D;
+
+// FFT plans shared by all of the deconvolution engines. Building a plan computes its twiddle tables, which used to happen on
+// every fourierConvolve call, so plans are kept by size and reused. Real_FFT_3D plans only read their tables while
+// transforming, so one can be used from several threads at once. FloatFFT_3D's complexForward rewrites the plan's stride
+// fields while it runs (JTransforms 3.1), so a complex plan must only be used by one thread at a time: cached complex
+// plans are only used through complexForward/complexInverse below, which lock them, and code that transforms from
+// several threads at once should build its own plans.
+//
+// The cache holds the MAX_PLANS most recently used plans; a run normally only needs one or two sizes.
+public class FFT_Cache {
+	
+	public static final int MAX_PLANS = 8;
+	
+	private static final Map<Key, Object> plans = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+			return size() > MAX_PLANS;
+		}
+	};
+	private static long hits;
+	private static long misses;
+	
+	private FFT_Cache() {}
+	
+	// plan for complex transforms of interleaved slices x height x width data, only used through the locked transforms below
+	private static FloatFFT_3D complex(int slices, int height, int width) {
+		return (FloatFFT_3D) get(new Key(slices, height, width, false));
+	}
+	
+	// plan for real transforms of slices x height x width data into the half spectrum
+	public static Real_FFT_3D real(int slices, int height, int width) {
+		return (Real_FFT_3D) get(new Key(slices, height, width, true));
+	}
+	
+	// transform vol in place with the cached plan, safe to call from several threads
+	public static void complexForward(Complex_Volume vol) {
+		FloatFFT_3D fft = complex(vol.slices, vol.height, vol.width);
+		synchronized (fft) {
+			fft.complexForward(vol.data);
+		}
+	}
+	
+	public static void complexInverse(Complex_Volume vol) {
+		FloatFFT_3D fft = complex(vol.slices, vol.height, vol.width);
+		synchronized (fft) {
+			fft.complexInverse(vol.data, true);
+		}
+	}
+	
+	// same for a matrix in FFT form
+	public static void complexForward(float[][][] mat) {
+		FloatFFT_3D fft = complex(mat.length, mat[0].length, mat[0][0].length / 2);
+		synchronized (fft) {
+			fft.complexForward(mat);
+		}
+	}
+	
+	public static void complexInverse(float[][][] mat) {
+		FloatFFT_3D fft = complex(mat.length, mat[0].length, mat[0][0].length / 2);
+		synchronized (fft) {
+			fft.complexInverse(mat, true);
+		}
+	}
+	
+	public static synchronized long getHits() {
+		return hits;
+	}
+	
+	public static synchronized long getMisses() {
+		return misses;
+	}
+	
+	// drop all plans and reset the statistics
+	public static synchronized void clear() {
+		plans.clear();
+		hits = 0;
+		misses = 0;
+	}
+	
+	private static synchronized Object get(Key key) {
+		Object plan = plans.get(key);
+		if (plan != null) {
+			hits++;
+			return plan;
+		}
+		
+		misses++;
+		if (key.real)
+			plan = new Real_FFT_3D(key.slices, key.height, key.width);
+		else
+			plan = new FloatFFT_3D((long)key.slices, (long)key.height, (long)key.width);
+		plans.put(key, plan);
+		
+		return plan;
+	}
+	
+	private static final class Key {
+		final int slices;
+		final int height;
+		final int width;
+		final boolean real;
+		
+		Key(int i_slices, int i_height, int i_width, boolean i_real) {
+			slices = i_slices;
+			height = i_height;
+			width = i_width;
+			real = i_real;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			
+			Key other = (Key) o;
+			return slices == other.slices && height == other.height && width == other.width && real == other.real;
+		}
+		
+		@Override
+		public int hashCode() {
+			return ((slices * 31 + height) * 31 + width) * 2 + (real ? 1 : 0);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,174 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+// overlaps disk access with deconvolution for the "Deconvolve from files" modes. A reader thread opens and converts the
+// next amplitude/phase pair while the current frame is deconvolved, and a writer thread saves finished frames. Both
+// sides hold at most DEPTH frames, so memory stays bounded however many files there are.
+//
+// Frames come out of next in file order. Writes run in the order they were queued; close waits for them and rethrows the
+// first failure of either thread.
+public class File_Pipeline<T> implements AutoCloseable {
+	
+	public static final int DEPTH = 2;
+	
+	private final BlockingQueue<Frame<T>> loaded = new ArrayBlockingQueue<Frame<T>>(DEPTH);
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "Deconvolution writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Semaphore writeSlots = new Semaphore(DEPTH);
+	private final List<Future<?>> writes = new ArrayList<Future<?>>();
+	private final Thread reader;
+	private final int count;
+	private int taken;
+	
+	// phasePath and phaseList are null when there is only one image per frame. loader converts an opened stack, it runs
+	// on the reader thread
+	public File_Pipeline(String ampPath, String[] ampList, String phasePath, String[] phaseList, Function<ImagePlus, T> loader) {
+		count = ampList.length;
+		reader = new Thread(() -> {
+			try {
+				for (int i = 0; i < count; i++) {
+					T amp = load(ampPath + ampList[i], loader);
+					T phase = phasePath == null ? null : load(phasePath + phaseList[i], loader);
+					loaded.put(new Frame<T>(i, amp, phase, null));
+				}
+			}
+			catch (InterruptedException e) {
+				// closed before all files were read
+			}
+			catch (RuntimeException | Error e) {
+				try {
+					loaded.put(new Frame<T>(-1, null, null, e));
+				}
+				catch (InterruptedException e2) {
+					// closed, nobody is waiting for the failure
+				}
+			}
+		}, "Deconvolution reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+	
+	public boolean hasNext() {
+		return taken < count;
+	}
+	
+	// wait for the next frame to be loaded
+	public Frame<T> next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		
+		Frame<T> frame;
+		try {
+			frame = loaded.take();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the next stack.", e);
+		}
+		if (frame.failure != null)
+			rethrow(frame.failure);
+		
+		taken++;
+		return frame;
+	}
+	
+	// queue task (typically reassign and save) on the writer thread. Blocks while DEPTH writes are already waiting
+	public void write(Runnable task) {
+		checkWrites(false);
+		writeSlots.acquireUninterruptibly();
+		writes.add(writer.submit(() -> {
+			try {
+				task.run();
+			}
+			finally {
+				writeSlots.release();
+			}
+		}));
+	}
+	
+	// stop reading, wait for the queued writes and report their failures
+	@Override
+	public void close() {
+		reader.interrupt();
+		writer.shutdown();
+		try {
+			checkWrites(true);
+		}
+		finally {
+			writer.shutdownNow();
+		}
+	}
+	
+	// rethrow the failure of a finished write. With wait, also wait for the unfinished ones
+	private void checkWrites(boolean wait) {
+		Iterator<Future<?>> it = writes.iterator();
+		while (it.hasNext()) {
+			Future<?> write = it.next();
+			if (!wait && !write.isDone())
+				continue;
+			
+			try {
+				write.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while saving.", e);
+			}
+			catch (ExecutionException e) {
+				rethrow(e.getCause());
+			}
+			it.remove();
+		}
+	}
+	
+	private T load(String path, Function<ImagePlus, T> loader) {
+		ImagePlus image = IJ.openImage(path);
+		if (image == null)
+			throw new IllegalArgumentException("Could not open " + path);
+		
+		T ret = loader.apply(image);
+		image.close();
+		return ret;
+	}
+	
+	private static void rethrow(Throwable failure) {
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		throw new IllegalStateException(failure);
+	}
+	
+	// one loaded frame. phase is null when the pipeline reads a single image per frame
+	public static class Frame<T> {
+		public final int index;
+		public final T amp;
+		public final T phase;
+		private final Throwable failure;
+		
+		private Frame(int i_index, T i_amp, T i_phase, Throwable i_failure) {
+			index = i_index;
+			amp = i_amp;
+			phase = i_phase;
+			failure = i_failure;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,130 @@
+package edu.pdx.imagej.deconv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+// frames of real volumes kept in a memory-mapped scratch file instead of on the heap, so a hyperstack is bounded by disk
+// space rather than by the heap. Engines only ever hold the frame they are working on; get copies a frame onto the heap
+// and put writes one back. A mapping cannot be over 2 GB, so each frame is mapped in chunks of whole slices of up to
+// 2 GB each; only a single slice must be under 2 GB.
+//
+// The scratch file goes in the directory given by the deconv.scratch system property, or the temporary directory if
+// it is not set. It is deleted by close (or when ImageJ exits, if the mapping is still open on platforms that lock it).
+public class Frame_Store implements AutoCloseable {
+	
+	public static final String SCRATCH_PROPERTY = "deconv.scratch";
+	
+	public final int frames;
+	public final int slices;
+	public final int height;
+	public final int width;
+	
+	private final File file;
+	private final RandomAccessFile raf;
+	private final int slicesPerChunk;
+	private FloatBuffer[][] buffers;
+	
+	public Frame_Store(int i_frames, int i_slices, int i_height, int i_width) {
+		this(i_frames, i_slices, i_height, i_width, getScratchDirectory());
+	}
+	
+	public Frame_Store(int i_frames, int i_slices, int i_height, int i_width, File directory) {
+		frames = i_frames;
+		slices = i_slices;
+		height = i_height;
+		width = i_width;
+		long sliceBytes = 4L * height * width;
+		long frameBytes = sliceBytes * slices;
+		if (sliceBytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Slices over 2 GB cannot be mapped.");
+		slicesPerChunk = (int) Math.min(slices, Integer.MAX_VALUE / sliceBytes);
+		int chunks = (slices + slicesPerChunk - 1) / slicesPerChunk;
+		
+		try {
+			file = File.createTempFile("deconv", ".frames", directory);
+			file.deleteOnExit();
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(frameBytes * frames);
+			
+			FileChannel channel = raf.getChannel();
+			buffers = new FloatBuffer[frames][chunks];
+			for (int i = 0; i < frames; i++)
+				for (int c = 0; c < chunks; c++) {
+					int chunkSlices = Math.min(slicesPerChunk, slices - c * slicesPerChunk);
+					buffers[i][c] = channel.map(FileChannel.MapMode.READ_WRITE, frameBytes * i + sliceBytes * c * slicesPerChunk, sliceBytes * chunkSlices).order(ByteOrder.nativeOrder()).asFloatBuffer();
+				}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Could not create a scratch file in " + directory, e);
+		}
+	}
+	
+	// copy frame i onto the heap
+	public Real_Volume get(int i) {
+		Real_Volume vol = new Real_Volume(slices, height, width);
+		get(i, vol);
+		return vol;
+	}
+	
+	public void get(int i, Real_Volume dest) {
+		checkShape(dest);
+		// duplicate so that frames can be read and written from several threads
+		for (int c = 0; c < buffers[i].length; c++) {
+			FloatBuffer buffer = buffers[i][c].duplicate();
+			buffer.get(dest.data, c * slicesPerChunk * height * width, buffer.remaining());
+		}
+	}
+	
+	// copy one slice of frame i into dest, which must hold height * width values
+	public void getSlice(int i, int slice, float[] dest) {
+		FloatBuffer buffer = buffers[i][slice / slicesPerChunk].duplicate();
+		buffer.position((slice % slicesPerChunk) * height * width);
+		buffer.get(dest, 0, height * width);
+	}
+	
+	// write vol as frame i
+	public void put(int i, Real_Volume vol) {
+		checkShape(vol);
+		for (int c = 0; c < buffers[i].length; c++) {
+			FloatBuffer buffer = buffers[i][c].duplicate();
+			buffer.put(vol.data, c * slicesPerChunk * height * width, buffer.remaining());
+		}
+	}
+	
+	// delete the scratch file, the store cannot be used afterwards. The mappings are dropped so they can be released,
+	// platforms that lock mapped files delete it on exit instead
+	@Override
+	public synchronized void close() {
+		if (buffers == null)
+			return;
+		buffers = null;
+		try {
+			raf.close();
+		}
+		catch (IOException e) {
+			// nothing is lost, the file is also deleted on exit
+		}
+		file.delete();
+	}
+	
+	public static File getScratchDirectory() {
+		return new File(System.getProperty(SCRATCH_PROPERTY, System.getProperty("java.io.tmpdir")));
+	}
+	
+	// true if the given number of bytes can be allocated on the heap with room to spare for the transforms
+	public static boolean fitsInHeap(long bytes) {
+		Runtime runtime = Runtime.getRuntime();
+		long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		return bytes < available / 2;
+	}
+	
+	private void checkShape(Real_Volume vol) {
+		if (vol.slices != slices || vol.height != height || vol.width != width)
+			throw new IllegalArgumentException("Volume does not match the " + slices + "x" + height + "x" + width + " frames of this store.");
+	}
+}
\ No newline at end of file
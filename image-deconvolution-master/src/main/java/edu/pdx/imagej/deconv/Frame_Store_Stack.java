@@ -0,0 +1,85 @@
+package edu.pdx.imagej.deconv;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// virtual stack that reads its slices from a Frame_Store, so results that do not fit on the heap can still be shown.
+// Slices are ordered like reassign orders them (frames, then slices within a frame) and are converted the same way.
+public class Frame_Store_Stack extends VirtualStack {
+	
+	private final Frame_Store store;
+	private final String impType;
+	private final float min;
+	private final double range;
+	private final Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
+	
+	public Frame_Store_Stack(Frame_Store i_store, String i_impType) {
+		super(i_store.width, i_store.height, i_store.frames * i_store.slices);
+		store = i_store;
+		impType = i_impType;
+		
+		// the scaling for 8 and 16 bit results needs the range of the whole hyperstack, one frame at a time
+		float low = Float.MAX_VALUE;
+		float high = -Float.MAX_VALUE;
+		for (int i = 0; i < store.frames; i++) {
+			Real_Volume vol = store.get(i);
+			low = Math.min(low, diu.minOf(vol));
+			high = Math.max(high, diu.maxOf(vol));
+		}
+		min = low;
+		range = high - low;
+	}
+	
+	public float getMin() {
+		return min;
+	}
+	
+	public float getMax() {
+		return (float)(min + range);
+	}
+	
+	@Override
+	public ImageProcessor getProcessor(int n) {
+		int frame = (n - 1) / store.slices;
+		int slice = (n - 1) % store.slices;
+		int sliceSize = store.width * store.height;
+		float[] data = new float[sliceSize];
+		store.getSlice(frame, slice, data);
+		Object pixels = impType == "GRAY32" ? data : diu.toPixels(data, 0, sliceSize, impType, min, range);
+		
+		if (impType == "GRAY32")
+			return new FloatProcessor(store.width, store.height, (float[]) pixels);
+		else if (impType == "GRAY16")
+			return new ShortProcessor(store.width, store.height, (short[]) pixels, null);
+		else
+			return new ByteProcessor(store.width, store.height, (byte[]) pixels);
+	}
+	
+	@Override
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+	
+	@Override
+	public int getSize() {
+		return store.frames * store.slices;
+	}
+	
+	@Override
+	public String getSliceLabel(int n) {
+		return null;
+	}
+	
+	@Override
+	public int getBitDepth() {
+		if (impType == "GRAY32")
+			return 32;
+		else if (impType == "GRAY16")
+			return 16;
+		else
+			return 8;
+	}
+}
\ No newline at end of file
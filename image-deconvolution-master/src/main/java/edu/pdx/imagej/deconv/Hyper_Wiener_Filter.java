@@ -43,18 +43,32 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
 	private String[] stack_list;
 	private String[] stack_list_phase;
 	private boolean getSNR;
+	private boolean snr_by_hand;
+	private boolean snr_per_frame;
 	private boolean normalizePSF;
 	private boolean get_error;
 	private boolean decon_hyper;
 	private boolean save_files;
 	private boolean intensity;
+	private boolean sweep_beta;
 	private float SNR;
-	private float[][][][] ampMat;
-	private float[][][][] phaseMat;
-	private float[][][][] imgMat;
-	private float[][][][] imgMatPhase;
-	private float[][][] psfMat;
-	private float[][][] psfPhaseMat;
+	// beta of the Custom Beta dialog, also used for frames whose SNR cannot be estimated
+	private static final float DEFAULT_BETA = 0.001f;
+	private float[] frameSNR;
+	private float sweep_min;
+	private float sweep_max;
+	private int sweep_steps;
+	private String sweep_method;
+	private int parallelism;
+	private int tile_budget;
+	private int tile_overlap;
+	private Tile_Layout tiles;
+	private Real_Volume[] ampMat;
+	private Real_Volume[] phaseMat;
+	private Real_Volume[] imgMat;
+	private Real_Volume[] imgMatPhase;
+	private Real_Volume psfMat;
+	private Real_Volume psfPhaseMat;
 	
 	private Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
 
@@ -88,11 +102,16 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
 		gd.addChoice("PSF amplitude/real image: ", image_list, image_list[image_list.length - 1]);
 		gd.addChoice("PSF phase/imaginary image: ", image_list, image_list[image_list.length - 1]);
 		gd.addCheckbox("Get SNR?", false);
+		gd.addCheckbox("Select SNR regions by hand?", false);
+		gd.addCheckbox("SNR per frame?", false);
 		gd.addCheckbox("Normalize PSF?", true);
 		gd.addCheckbox("Use intensity maps?", false);
 		gd.addCheckbox("Display error?", false);
 		gd.addCheckbox("Deconvolve from files?", false);
 		gd.addCheckbox("Save by frame?", false);
+		gd.addNumericField("Frames in parallel:", Runtime.getRuntime().availableProcessors(), 0);
+		gd.addNumericField("Tile memory (MB, 0 for whole field):", 0, 0);
+		gd.addNumericField("Tile overlap:", 64, 0);
 
 		gd.showDialog();
 		if (gd.wasCanceled())
@@ -106,11 +125,16 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
 		PSF_amp_selection = gd.getNextChoice();
 		PSF_phase_selection = gd.getNextChoice();
 		getSNR = gd.getNextBoolean();
+		snr_by_hand = gd.getNextBoolean();
+		snr_per_frame = gd.getNextBoolean() && getSNR && !snr_by_hand;
 		normalizePSF = gd.getNextBoolean();
 		intensity = gd.getNextBoolean();
 		get_error = gd.getNextBoolean();
 		decon_hyper = !gd.getNextBoolean();
 		save_files = gd.getNextBoolean();	
+		parallelism = Math.max(1, (int) gd.getNextNumber());
+		tile_budget = Math.max(0, (int) gd.getNextNumber());
+		tile_overlap = Math.max(0, (int) gd.getNextNumber());
 		
 		// ensure required images are entered
 		if (amp_selection == "<none>" || PSF_amp_selection == "<none>") {
@@ -122,16 +146,47 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
 			return showDialog();
 		}
 		
+		// tiles are checked against the PSF's size here, and against its radius once it is read (see process)
+		if (tile_budget > 0 && decon_choice == "Standard") {
+			if (tile_overlap < 2) {
+				IJ.error("Tiles need an overlap of at least 2 pixels to be blended.");
+				return showDialog();
+			}
+			ImagePlus psf = WindowManager.getImage(diu.getImageTitle(PSF_amp_selection));
+			try {
+				Tile_Layout.forBudget(psf.getWidth(), psf.getHeight(), psf.getNSlices(), tile_overlap, 0, (long) tile_budget << 20, parallelism);
+			}
+			catch (IllegalArgumentException e) {
+				IJ.error(e.getMessage());
+				return showDialog();
+			}
+		}
+		
 		// input dialog appears if user does not want to calculate the snr
 		if (!getSNR) {
 			GenericDialog gd2 = new GenericDialog("Custom Beta");
-			gd2.addNumericField("Beta:", 0.001, 3);
+			gd2.addNumericField("Beta:", DEFAULT_BETA, 3);
+			gd2.addCheckbox("Choose beta automatically?", false);
+			gd2.addNumericField("Smallest beta:", 0.000001, 6);
+			gd2.addNumericField("Largest beta:", 1, 3);
+			gd2.addNumericField("Betas to try:", 50, 0);
+			gd2.addChoice("Choose by:", new String[] {Beta_Sweep.GCV, Beta_Sweep.L_CURVE}, Beta_Sweep.GCV);
 			
 			gd2.showDialog();
 			if (gd2.wasCanceled())
 				return false;
 			
 			SNR = (float) (1 / gd2.getNextNumber());
+			sweep_beta = gd2.getNextBoolean();
+			sweep_min = (float) gd2.getNextNumber();
+			sweep_max = (float) gd2.getNextNumber();
+			sweep_steps = Math.max(1, (int) gd2.getNextNumber());
+			sweep_method = gd2.getNextChoice();
+			
+			if (sweep_beta && (sweep_min <= 0 || sweep_max < sweep_min)) {
+				IJ.showMessage("The beta range must be positive and increasing.");
+				return showDialog();
+			}
 		}
 		
 		// find the stack directory and get a list of the files in it
@@ -207,24 +262,34 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
 		height = PSF_amp.getProcessor().getHeight();
 		slices = PSF_amp.getNSlices();
 		
-		if (getSNR) {
+		if (getSNR && snr_by_hand) {
 			// get signal-to-noise through user input
 			Noise_NP nnp = new Noise_NP();
 			float noiseDev = nnp.getNoise(image_amp);
 			float signal = nnp.getSignal(image_amp);
 			SNR = signal / noiseDev;
 		}
+		else if (getSNR) {
+			// estimate it from the amplitude image instead, one value per frame. Frames from files are estimated as
+			// they are read if they get their own SNR
+			IJ.showStatus("Estimating SNR...");
+			float[] snrs = new Noise_NP().estimateSNR(image_amp, 1 / DEFAULT_BETA);
+			if (snr_per_frame && decon_hyper)
+				frameSNR = snrs.clone();
+			SNR = Noise_NP.median(snrs);
+			IJ.log("Estimated SNR: " + Float.toString(SNR));
+		}
 		
 		IJ.showStatus("Preprocessing...");
 		
 		// convert image stacks to matrices
-		psfMat = diu.getMatrix3D(PSF_amp);
+		psfMat = diu.getVolume(PSF_amp);
 		cal = PSF_amp.getCalibration();
 		
 		// get imaginary/phase PSF image if doing complex deconvolution
 		if (decon_choice != "Standard") {
 			PSF_phase = WindowManager.getImage(diu.getImageTitle(PSF_phase_selection));
-			psfPhaseMat = diu.getMatrix3D(PSF_phase);
+			psfPhaseMat = diu.getVolume(PSF_phase);
 		}
 		
 		// normalize PSF matrix accordingly
@@ -232,16 +297,34 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
 			diu.normalize(psfMat);
 		if (normalizePSF && decon_choice == "Complex (Rectangular)")
 			diu.normalize(psfMat, psfPhaseMat);
+		
+		// the guard band dropped at tile edges is the PSF's radius, and the overlap has to hold it on both sides
+		tiles = null;
+		if (tile_budget > 0 && decon_choice == "Standard") {
+			int guard = Tile_Layout.psfRadius(psfMat);
+			if (tile_overlap < 2 * guard) {
+				IJ.error("The PSF radius is " + Integer.toString(guard) + " pixels, so the tile overlap must be at least " + Integer.toString(2 * guard) + ".");
+				return;
+			}
+			try {
+				tiles = Tile_Layout.forBudget(width, height, slices, tile_overlap, guard, (long) tile_budget << 20, parallelism);
+			}
+			catch (IllegalArgumentException e) {
+				IJ.error(e.getMessage());
+				return;
+			}
+		}
+		
+		if (decon_hyper && decon_choice != "Standard")
+			image_phase = WindowManager.getImage(diu.getImageTitle(phase_selection));
+		if (sweep_beta)
+			run_beta_sweep();
 			
 		// decide which deconvolution procedure to follow based on user preferences
 		if (decon_hyper) {
-			// get imaginary/phase image if doing complex deconvolution
-			if (decon_choice != "Standard") {
-				image_phase = WindowManager.getImage(diu.getImageTitle(phase_selection));
-				phaseMat = diu.getMatrix4D(image_phase);
-			}
-			
-			if (save_files)
+			if (useFrameStore())
+				deconvolve_to_store();
+			else if (save_files)
 				save_from_hyperstack();
 			else
 				show_from_hyperstack();
@@ -256,8 +339,10 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
 	
 	// save frames from a hyperstack
 	public void save_from_hyperstack() {
-		ampMat = diu.getMatrix4D(image_amp);
-		Wiener_Utils wu = new Wiener_Utils(width, height, slices, frames, 1/SNR, intensity);
+		ampMat = diu.getVolumes(image_amp);
+		if (decon_choice != "Standard")
+			phaseMat = diu.getVolumes(image_phase);
+		Wiener_Utils wu = createUtils(frames);
 		IJ.showStatus("Deconvolving hyperstack...");
 		
 		// deconvolve using proper strategy
@@ -291,73 +376,61 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
 				IJ.saveAsTiff(tempImg, save_path + "Imaginary" + divisor + Integer.toString(i) + ".tif");
 			}				
 		}
+		
+		reportSaturation(wu);
 	}
 	
-	// save by frames from images stored in a folder
+	// save by frames from images stored in a folder. The next stacks are read and the previous results saved while
+	// each frame is deconvolved
 	public void save_from_files() {
-		ampMat = new float[1][slices][height][width];
-		if (decon_choice != "Standard")
-			phaseMat = new float[1][slices][height][width];
-		
-		Wiener_Utils wu = new Wiener_Utils(width, height, slices, 1, 1/SNR, intensity);
+		Wiener_Utils wu = createUtils(1);
+		// every file uses the same PSF, so only transform it once
+		Prepared_PSF psf = preparePSF(wu);
 		
-		// loop over images in stack
-		for (int i = 0; i < stack_list.length; i++) {
-			IJ.showStatus("Processing frame " + Integer.toString(i + 1) + " of " + Integer.toString(stack_list.length) + "...");
-			ImagePlus tempImg = IJ.openImage(stack_path + stack_list[i]);
-			ampMat = diu.getMatrix4D(tempImg);
-			tempImg.close();
-			
-			// deconvolve and save
-			if (decon_choice == "Standard") {
-				wu.deconvolve(ampMat, psfMat, get_error);
+		try (File_Pipeline<Real_Volume[]> files = openFiles()) {
+			while (files.hasNext()) {
+				File_Pipeline.Frame<Real_Volume[]> frame = files.next();
+				int i = frame.index;
+				if (snr_per_frame)
+					wu.setFrameBetas(betas(new Noise_NP().estimateSNR(frame.amp, 1 / DEFAULT_BETA)));
+				IJ.showStatus("Processing frame " + Integer.toString(i + 1) + " of " + Integer.toString(stack_list.length) + "...");
 				
-				tempImg = diu.reassign(wu.imgComplex, choice, Integer.toString(i));
-				tempImg.setCalibration(cal);
-				IJ.saveAsTiff(tempImg, save_path + Integer.toString(i) + ".tif");
-				tempImg.close();
+				// deconvolve and queue the results for saving, the result volumes are not reused by wu
+				if (decon_choice == "Standard") {
+					wu.deconvolve(frame.amp, psf, get_error);
+					Real_Volume result = wu.imgComplex[0];
+					files.write(() -> save_frame(result, "", i));
+				}
+				else if (decon_choice == "Complex (Polar)") {
+					wu.deconvolve(frame.amp, frame.phase, psf, get_error, "Polar");
+					Real_Volume amp = wu.imgComplex[0];
+					Real_Volume phase = wu.imgPhase[0];
+					files.write(() -> {
+						save_frame(amp, "Amplitude" + divisor, i);
+						save_frame(phase, "Phase" + divisor, i);
+					});
+				}
+				else {
+					wu.deconvolve(frame.amp, frame.phase, psf, get_error, "Rectangular");
+					Real_Volume re = wu.imgComplex[0];
+					Real_Volume im = wu.imgPhase[0];
+					files.write(() -> {
+						save_frame(re, "Real" + divisor, i);
+						save_frame(im, "Imaginary" + divisor, i);
+					});
+				}
 			}
-			else if (decon_choice == "Complex (Polar)") {
-				// get corresponding phase image
-				ImagePlus phaseImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-				phaseMat = diu.getMatrix4D(phaseImg);
-				phaseImg.close();
-				
-				wu.deconvolve(ampMat, phaseMat, psfMat, psfPhaseMat, get_error, "Polar");
-				
-				tempImg = diu.reassign(wu.imgComplex, choice, Integer.toString(i));
-				tempImg.setCalibration(cal);
-				IJ.saveAsTiff(tempImg, save_path + "Amplitude" + divisor + Integer.toString(i) + ".tif");
-				
-				tempImg = diu.reassign(wu.imgPhase, choice, Integer.toString(i));
-				tempImg.setCalibration(cal);
-				IJ.saveAsTiff(tempImg, save_path + "Phase" + divisor + Integer.toString(i) + ".tif");
-				tempImg.close();
-			}
-			else {
-				// get corresponding complex image
-				ImagePlus imImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-				phaseMat = diu.getMatrix4D(imImg);
-				imImg.close();
-				
-				wu.deconvolve(ampMat, phaseMat, psfMat, psfPhaseMat, get_error, "Rectangular");
-				
-				tempImg = diu.reassign(wu.imgComplex, choice, Integer.toString(i));
-				tempImg.setCalibration(cal);
-				IJ.saveAsTiff(tempImg, save_path + "Real" + divisor + Integer.toString(i) + ".tif");
-				
-				tempImg = diu.reassign(wu.imgPhase, choice, Integer.toString(i));
-				tempImg.setCalibration(cal);
-				IJ.saveAsTiff(tempImg, save_path + "Imaginary" + divisor + Integer.toString(i) + ".tif");
-				tempImg.close();
-			}		
 		}
+		
+		reportSaturation(wu);
 	}
 	
 	// open a deconvolved hyperstack from a hyperstack
 	public void show_from_hyperstack() {
-		ampMat = diu.getMatrix4D(image_amp);
-		Wiener_Utils wu = new Wiener_Utils(width, height, slices, frames, 1/SNR, intensity);
+		ampMat = diu.getVolumes(image_amp);
+		if (decon_choice != "Standard")
+			phaseMat = diu.getVolumes(image_phase);
+		Wiener_Utils wu = createUtils(frames);
 		IJ.showStatus("Deconvolving hyperstack...");
 		
 		if (decon_choice == "Standard") {
@@ -397,52 +470,42 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
 		}	
 		
 		if (get_error)
-			IJ.showMessage("Error: " + Float.toString(wu.error * 100) + "%");
+			IJ.showMessage("Error (relative residual): " + Float.toString(wu.error * 100) + "%");
+		
+		reportSaturation(wu);
 	}
 	
 	// open a deconvolved hyperstack from saved images
 	public void show_from_files() {
-		imgMat = new float[stack_list.length][slices][height][width];
-		ampMat = new float[1][slices][height][width];
+		imgMat = new Real_Volume[stack_list.length];
 		
-		if (decon_choice != "Standard") {
-			imgMatPhase = new float[stack_list.length][slices][height][width];
-			phaseMat = new float[1][slices][height][width];
-		}
+		if (decon_choice != "Standard")
+			imgMatPhase = new Real_Volume[stack_list.length];
 		
-		Wiener_Utils wu = new Wiener_Utils(width, height, slices, 1, 1/SNR, intensity);
+		Wiener_Utils wu = createUtils(1);
+		// every file uses the same PSF, so only transform it once
+		Prepared_PSF psf = preparePSF(wu);
 		
-		// loop through frames in folder and deconvolve
-		for (int i = 0; i < stack_list.length; i++) {
-			IJ.showStatus("Processing frame " + Integer.toString(i + 1) + " of " + Integer.toString(stack_list.length) + "...");
-			ImagePlus tempImg = IJ.openImage(stack_path + stack_list[i]);
-			ampMat = diu.getMatrix4D(tempImg);
-			tempImg.close();
-			
-			// put deconvolved frame in ith slot of hyperstack matrix
-			if (decon_choice == "Standard") {
-				wu.deconvolve(ampMat, psfMat, get_error);
-				imgMat[i] = wu.imgComplex[0];
-				tempImg.close();
-			}
-			else if (decon_choice == "Complex (Polar)") {
-				ImagePlus phaseImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-				phaseMat = diu.getMatrix4D(phaseImg);
-				phaseImg.close();
+		// loop through frames in folder and deconvolve, the next stacks are read in the background
+		try (File_Pipeline<Real_Volume[]> files = openFiles()) {
+			while (files.hasNext()) {
+				File_Pipeline.Frame<Real_Volume[]> frame = files.next();
+				int i = frame.index;
+				if (snr_per_frame)
+					wu.setFrameBetas(betas(new Noise_NP().estimateSNR(frame.amp, 1 / DEFAULT_BETA)));
+				IJ.showStatus("Processing frame " + Integer.toString(i + 1) + " of " + Integer.toString(stack_list.length) + "...");
 				
-				wu.deconvolve(ampMat, phaseMat, psfMat, psfPhaseMat, get_error, "Polar");
-				imgMat[i] = wu.imgComplex[0];
-				imgMatPhase[i] = wu.imgPhase[0];
+				// put deconvolved frame in ith slot of hyperstack matrix
+				if (decon_choice == "Standard") {
+					wu.deconvolve(frame.amp, psf, get_error);
+					imgMat[i] = wu.imgComplex[0];
+				}
+				else {
+					wu.deconvolve(frame.amp, frame.phase, psf, get_error, decon_choice == "Complex (Polar)" ? "Polar" : "Rectangular");
+					imgMat[i] = wu.imgComplex[0];
+					imgMatPhase[i] = wu.imgPhase[0];
+				}
 			}
-			else {
-				ImagePlus imImg = IJ.openImage(stack_path_phase + stack_list_phase[i]);
-				phaseMat = diu.getMatrix4D(imImg);
-				imImg.close();
-				
-				wu.deconvolve(ampMat, phaseMat, psfMat, psfPhaseMat, get_error, "Rectangular");
-				imgMat[i] = wu.imgComplex[0];
-				imgMatPhase[i] = wu.imgPhase[0];
-			}		
 		}
 		
 		// show final images
@@ -472,10 +535,167 @@ public class Hyper_Wiener_Filter implements PlugInFilter {
 		}
 		
 		if (get_error)
-			IJ.showMessage("Error: " + Float.toString(wu.error * 100) + "%");
+			IJ.showMessage("Error (relative residual): " + Float.toString(wu.error * 100) + "%");
+		
+		reportSaturation(wu);
 	}
 
 	
+	// hyperstacks too large for the heap are deconvolved one frame at a time into memory-mapped scratch files, then
+	// saved frame by frame or shown as a virtual stack
+	public void deconvolve_to_store() {
+		Wiener_Utils wu = createUtils(frames);
+		Prepared_PSF psf = preparePSF(wu);
+		Frame_Store results = new Frame_Store(frames, slices, height, width);
+		Frame_Store phaseResults = null;
+		IJ.showStatus("Deconvolving hyperstack...");
+		
+		if (decon_choice == "Standard")
+			wu.deconvolve(image_amp, psf, get_error, results);
+		else {
+			phaseResults = new Frame_Store(frames, slices, height, width);
+			wu.deconvolve(image_amp, image_phase, psf, get_error, decon_choice == "Complex (Polar)" ? "Polar" : "Rectangular", results, phaseResults);
+		}
+		
+		String[] names;
+		if (decon_choice == "Standard")
+			names = new String[] {"Result"};
+		else if (decon_choice == "Complex (Polar)")
+			names = new String[] {"Amplitude", "Phase"};
+		else
+			names = new String[] {"Real", "Imaginary"};
+		Frame_Store[] stores = {results, phaseResults};
+		
+		if (save_files) {
+			IJ.showStatus("Saving images...");
+			for (int i = 0; i < frames; i++)
+				for (int j = 0; j < names.length; j++) {
+					ImagePlus tempImg = diu.reassign(stores[j].get(i), choice, Integer.toString(i));
+					tempImg.setCalibration(cal);
+					if (decon_choice == "Standard")
+						IJ.saveAsTiff(tempImg, save_path + Integer.toString(i) + ".tif");
+					else
+						IJ.saveAsTiff(tempImg, save_path + names[j] + divisor + Integer.toString(i) + ".tif");
+				}
+			
+			results.close();
+			if (phaseResults != null)
+				phaseResults.close();
+		}
+		else {
+			// the shown images read their slices from the stores, which are closed when the images are
+			IJ.showStatus("Constructing result...");
+			for (int j = 0; j < names.length; j++) {
+				ImagePlus tempImg = diu.reassign(stores[j], choice, names[j]);
+				tempImg.setCalibration(cal);
+				tempImg.show();
+			}
+			
+			if (get_error)
+				IJ.showMessage("Error (relative residual): " + Float.toString(wu.error * 100) + "%");
+		}
+		
+		reportSaturation(wu);
+	}
+	
+	// the input, the result and their phases have to fit on the heap at once, as well as the transform buffers
+	private boolean useFrameStore() {
+		long bytes = 4L * width * height * slices * frames * (decon_choice == "Standard" ? 2 : 4);
+		return !Frame_Store.fitsInHeap(bytes);
+	}
+	
+	// reader/writer pipeline over the stack folders, the phase folder is only read for complex deconvolution
+	private File_Pipeline<Real_Volume[]> openFiles() {
+		if (decon_choice == "Standard")
+			return new File_Pipeline<Real_Volume[]>(stack_path, stack_list, null, null, diu::getVolumes);
+		return new File_Pipeline<Real_Volume[]>(stack_path, stack_list, stack_path_phase, stack_list_phase, diu::getVolumes);
+	}
+	
+	// reassign one result and save it as frame i, runs on the pipeline's writer thread
+	private void save_frame(Real_Volume vol, String folder, int i) {
+		ImagePlus tempImg = diu.reassign(vol, choice, Integer.toString(i));
+		tempImg.setCalibration(cal);
+		IJ.saveAsTiff(tempImg, save_path + folder + Integer.toString(i) + ".tif");
+		tempImg.close();
+	}
+	
+	// Wiener_Utils for count frames at a time. Real data is tiled if a tile budget was given
+	private Wiener_Utils createUtils(int count) {
+		Wiener_Utils wu = new Wiener_Utils(width, height, slices, count, 1/SNR, intensity);
+		wu.setParallelism(parallelism);
+		if (frameSNR != null && count == frames)
+			wu.setFrameBetas(betas(frameSNR));
+		if (tiles != null)
+			wu.setTiling(tiles);
+		
+		return wu;
+	}
+	
+	// beta of each frame from its SNR
+	private static float[] betas(float[] snrs) {
+		float[] betas = new float[snrs.length];
+		for (int i = 0; i < snrs.length; i++)
+			betas[i] = 1 / snrs[i];
+		
+		return betas;
+	}
+	
+	// transform the PSF for the chosen type of deconvolution
+	private Prepared_PSF preparePSF(Wiener_Utils wu) {
+		if (decon_choice == "Standard")
+			return wu.preparePSF(psfMat);
+		else if (decon_choice == "Complex (Polar)")
+			return wu.preparePSF(psfMat, psfPhaseMat, "Polar");
+		else
+			return wu.preparePSF(psfMat, psfPhaseMat, "Rectangular");
+	}
+	
+	// pick beta from a sweep over the whole hyperstack, or over the first file when deconvolving from files. Each frame
+	// is transformed once and every beta is then scored in Fourier space
+	private void run_beta_sweep() {
+		Wiener_Utils wu = new Wiener_Utils(width, height, slices, 1, 1, intensity);
+		Beta_Sweep sweep = new Beta_Sweep(preparePSF(wu));
+		String style = decon_choice == "Complex (Polar)" ? "Polar" : "Rectangular";
+		IJ.showStatus("Sweeping beta...");
+		
+		if (decon_hyper) {
+			for (int i = 0; i < frames; i++) {
+				if (decon_choice == "Standard")
+					wu.addToSweep(sweep, diu.getVolume(image_amp, i));
+				else
+					wu.addToSweep(sweep, diu.getVolume(image_amp, i), diu.getVolume(image_phase, i), style);
+				IJ.showProgress(i + 1, frames);
+			}
+		}
+		else {
+			ImagePlus tempImg = IJ.openImage(stack_path + stack_list[0]);
+			Real_Volume amp = diu.getVolume(tempImg);
+			tempImg.close();
+			if (decon_choice == "Standard")
+				wu.addToSweep(sweep, amp);
+			else {
+				ImagePlus phaseImg = IJ.openImage(stack_path_phase + stack_list_phase[0]);
+				wu.addToSweep(sweep, amp, diu.getVolume(phaseImg), style);
+				phaseImg.close();
+			}
+		}
+		
+		sweep.evaluate(sweep_min, sweep_max, sweep_steps);
+		float beta = sweep.getBeta(sweep_method);
+		SNR = 1 / beta;
+		
+		sweep.plotGCV().show();
+		sweep.plotLCurve().show();
+		IJ.log("Beta sweep: GCV chose " + Float.toString(sweep.getGCVBeta()) + ", L-curve chose " + Float.toString(sweep.getLCurveBeta()) + ", using " + Float.toString(beta) + ".");
+	}
+	
+	// let the user know when the filter overflowed, since that means beta should be raised
+	private void reportSaturation(Wiener_Utils wu) {
+		long count = wu.getSaturationCount();
+		if (count > 0)
+			IJ.log("Wiener filter: " + Long.toString(count) + " voxels saturated, consider a larger beta.");
+	}
+	
 	public void showAbout() {
 		IJ.showMessage("DeconvolveImage",
 			"Deconvolves DHM images using the Wiener filter."
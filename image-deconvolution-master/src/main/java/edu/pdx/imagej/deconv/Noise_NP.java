@@ -1,5 +1,8 @@
 package edu.pdx.imagej.deconv;
 
+import java.util.stream.IntStream;
+
+import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.gui.WaitForUserDialog;
@@ -7,6 +10,17 @@ import ij.process.ImageStatistics;
 
 public class Noise_NP {
 	
+	// the Laplacian mask {1 -2 1; -2 4 -2; 1 -2 1} cancels smooth signal, and scales white noise by its norm, 6
+	private static final double MASK_NORM = 6;
+	// median of |x| over the standard deviation of a normal distribution
+	private static final double MAD_SCALE = 0.6744897501960817;
+	// the noise is never taken to be below this fraction of the data's RMS, nor below the rounding noise of integer data
+	// (a uniform error over one step, 1/sqrt(12)). Flat quantized backgrounds otherwise give a noise of 0
+	private static final double MIN_NOISE_FRACTION = 1e-3;
+	private static final double QUANTIZATION_NOISE = 1 / Math.sqrt(12);
+	
+	private Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
+	
 	public float getNoise(ImagePlus image) {
 		WaitForUserDialog dialog = new WaitForUserDialog("Please select a region of noise that has little to no signal.");
 		dialog.show();
@@ -26,4 +40,144 @@ public class Noise_NP {
 		
 		return mean;
 	}
+	
+	// SNR of every frame of a hyperstack without user input, see estimateSNR(Real_Volume[], float). Frames are read one
+	// at a time
+	public float[] estimateSNR(ImagePlus image, float fallback) {
+		float[] ret = new float[image.getNFrames()];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = usableSNR(estimateSNR(diu.getVolume(image, i)), fallback, i);
+		
+		return ret;
+	}
+	
+	// SNR of every frame, e.g. of one file. A frame whose SNR cannot be estimated (no signal at all) gets fallback, and
+	// that is logged
+	public float[] estimateSNR(Real_Volume[] vols, float fallback) {
+		float[] ret = new float[vols.length];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = usableSNR(estimateSNR(vols[i]), fallback, i);
+		
+		return ret;
+	}
+	
+	// signal over noise, as getSignal / getNoise but with estimateSignal and estimateNoise. NaN or infinite if the frame
+	// has no usable signal or noise
+	public float estimateSNR(Real_Volume vol) {
+		float[][] stats = sliceStats(vol);
+		float noise = noise(stats, vol.height * vol.width);
+		return (float) (signal(stats, vol.height * vol.width, noise) / noise);
+	}
+	
+	// standard deviation of the noise: the median absolute Laplacian residual of each slice (scaled to a standard deviation),
+	// then the median over the slices. Edges only touch a few residuals, so they barely move the medians. The result is
+	// kept above MIN_NOISE_FRACTION of the RMS, and above QUANTIZATION_NOISE for integer data
+	public float estimateNoise(Real_Volume vol) {
+		return noise(sliceStats(vol), vol.height * vol.width);
+	}
+	
+	// RMS of the signal once the noise variance is taken out
+	public float estimateSignal(Real_Volume vol, float noise) {
+		return (float) signal(sliceStats(vol), vol.height * vol.width, noise);
+	}
+	
+	private float usableSNR(float snr, float fallback, int frame) {
+		if (snr > 0 && !Float.isInfinite(snr))
+			return snr;
+		
+		IJ.log("Frame " + Integer.toString(frame + 1) + ": the SNR could not be estimated, using " + Float.toString(fallback) + " instead.");
+		return fallback;
+	}
+	
+	// one parallel pass over the slices: {noise of each slice, sum of squares of each slice, 1 if the slice only has
+	// integer values and 0 if not}
+	private float[][] sliceStats(Real_Volume vol) {
+		float[][] stats = new float[3][vol.slices];
+		IntStream.range(0, vol.slices).parallel().forEach(s -> {
+			int offset = s * vol.height * vol.width;
+			double squares = 0;
+			boolean integers = true;
+			for (int i = 0; i < vol.height * vol.width; i++) {
+				squares += (double) vol.data[offset + i] * vol.data[offset + i];
+				integers &= vol.data[offset + i] == Math.rint(vol.data[offset + i]);
+			}
+			stats[0][s] = sliceNoise(vol.data, offset, vol.height, vol.width);
+			stats[1][s] = (float) squares;
+			stats[2][s] = integers ? 1 : 0;
+		});
+		
+		return stats;
+	}
+	
+	private float noise(float[][] stats, int sliceSize) {
+		double squares = 0;
+		boolean integers = true;
+		for (int s = 0; s < stats[1].length; s++) {
+			squares += stats[1][s];
+			integers &= stats[2][s] == 1;
+		}
+		double floor = MIN_NOISE_FRACTION * Math.sqrt(squares / ((double) sliceSize * stats[1].length));
+		if (integers)
+			floor = Math.max(floor, QUANTIZATION_NOISE);
+		
+		return (float) Math.max(median(stats[0].clone()), floor);
+	}
+	
+	private double signal(float[][] stats, int sliceSize, float noise) {
+		double squares = 0;
+		for (float sliceSquares : stats[1])
+			squares += sliceSquares;
+		double meanSquare = squares / ((double) sliceSize * stats[1].length);
+		
+		return Math.sqrt(Math.max(meanSquare - (double) noise * noise, 0));
+	}
+	
+	// 0 for slices too small for the mask, the floor in noise then applies
+	private float sliceNoise(float[] data, int offset, int height, int width) {
+		if (height < 3 || width < 3)
+			return 0;
+		
+		float[] residuals = new float[(height - 2) * (width - 2)];
+		int n = 0;
+		for (int r = 1; r < height - 1; r++)
+			for (int c = 1; c < width - 1; c++) {
+				int i = offset + r*width + c;
+				float corners = data[i - width - 1] + data[i - width + 1] + data[i + width - 1] + data[i + width + 1];
+				float sides = data[i - width] + data[i + width] + data[i - 1] + data[i + 1];
+				residuals[n++] = Math.abs(corners - 2*sides + 4*data[i]);
+			}
+		
+		return (float) (median(residuals) / MAD_SCALE / MASK_NORM);
+	}
+	
+	// median by quickselect, values is reordered. Also used to combine per-frame SNRs into one
+	public static float median(float[] values) {
+		int k = values.length / 2;
+		int low = 0;
+		int high = values.length - 1;
+		while (low < high) {
+			float pivot = values[(low + high) >>> 1];
+			int i = low;
+			int j = high;
+			while (i <= j) {
+				while (values[i] < pivot)
+					i++;
+				while (values[j] > pivot)
+					j--;
+				if (i <= j) {
+					float temp = values[i];
+					values[i++] = values[j];
+					values[j--] = temp;
+				}
+			}
+			if (k <= j)
+				high = j;
+			else if (k >= i)
+				low = i;
+			else
+				break;
+		}
+		
+		return values[k];
+	}
 }
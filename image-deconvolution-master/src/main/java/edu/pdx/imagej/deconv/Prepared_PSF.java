@@ -0,0 +1,128 @@
+package edu.pdx.imagej.deconv;
+
+// a PSF that has been transformed once, so the same spectrum (OTF) can be used for every frame, iteration and file.
+// A real PSF is kept as the half spectrum of Real_FFT_3D; a complex PSF (in FFT form) is kept as the full spectrum of
+// FloatFFT_3D. |H|^2 and the Wiener filter conj(H) / (|H|^2 + beta) are only computed if they are asked for, and then
+// kept as well. Only the filter for the most recent beta is kept.
+//
+// When every dimension is even (or 1), the spectrum is also multiplied by (-1)^(s+r+c). That is a circular shift by half
+// of each dimension in space, the same reordering formatIFFT does after an inverse transform, so convolutions with a
+// shifted PSF come out of the inverse transform already formatted and skip that pass. Odd sizes still need formatIFFT.
+//
+// The PSF must already be normalized and have the size of the images it is used with.
+public class Prepared_PSF {
+	
+	public final int slices;
+	public final int height;
+	public final int width;
+	
+	private final boolean real;
+	private final boolean shifted;
+	private final Complex_Volume otf;
+	private Complex_Volume power;
+	private Complex_Volume wienerFilter;
+	private float wienerBeta;
+	
+	// prepare a real PSF
+	public Prepared_PSF(Real_Volume psf) {
+		slices = psf.slices;
+		height = psf.height;
+		width = psf.width;
+		real = true;
+		otf = FFT_Cache.real(slices, height, width).forward(psf);
+		shifted = shift(otf);
+	}
+	
+	// prepare a complex PSF in FFT form. psf is left unchanged
+	public Prepared_PSF(Complex_Volume psf) {
+		slices = psf.slices;
+		height = psf.height;
+		width = psf.width;
+		real = false;
+		otf = psf.copy();
+		FFT_Cache.complexForward(otf);
+		shifted = shift(otf);
+	}
+	
+	// true if the spectra are half spectra of a real PSF
+	public boolean isReal() {
+		return real;
+	}
+	
+	// true if the OTF includes the formatIFFT shift, then results of convolving with it must not be formatted again
+	public boolean isShifted() {
+		return shifted;
+	}
+	
+	// H, the transformed PSF. Callers must not modify it
+	public Complex_Volume getOTF() {
+		return otf;
+	}
+	
+	// |H|^2, with zero imaginary parts
+	public synchronized Complex_Volume getPower() {
+		if (power == null) {
+			power = new Complex_Volume(otf.slices, otf.height, otf.width);
+			Complex_Kernels.create().apply(Complex_Kernels.Operation.ABS_SQUARED, otf, null, power);
+		}
+		
+		return power;
+	}
+	
+	// conj(H) / (|H|^2 + beta), so a Wiener filtered frame is a single multiplication. Saturated values are counted by kernels
+	public synchronized Complex_Volume getWienerFilter(float beta, Complex_Kernels kernels) {
+		if (wienerFilter == null || wienerBeta != beta) {
+			Complex_Volume filter = otf.copy();
+			for (int i = 1; i < filter.data.length; i += 2)
+				filter.data[i] = -filter.data[i];
+			kernels.apply(Complex_Kernels.Operation.ADD_SCALAR_DIVIDE, filter, getPower(), beta, filter);
+			
+			wienerFilter = filter;
+			wienerBeta = beta;
+		}
+		
+		return wienerFilter;
+	}
+	
+	// how many spectrum entries each stored column stands for in sums over the whole spectrum (Parseval). A half spectrum
+	// stores every column but 0 and (for even widths) the last one for itself and its mirror image
+	public float[] getColumnWeights() {
+		float[] weights = new float[otf.width];
+		for (int c = 0; c < otf.width; c++)
+			weights[c] = !real || c == 0 || (width % 2 == 0 && c == otf.width - 1) ? 1 : 2;
+		
+		return weights;
+	}
+	
+	// true if this PSF can be applied to a real volume of the given shape
+	public boolean matches(Real_Volume vol) {
+		return real && vol.slices == slices && vol.height == height && vol.width == width;
+	}
+	
+	// true if this PSF can be applied to a complex volume of the given shape
+	public boolean matches(Complex_Volume vol) {
+		return !real && vol.sameShape(otf);
+	}
+	
+	// negate every other element of the spectrum in a checkerboard pattern, if the shift it stands for is the one formatIFFT does
+	private boolean shift(Complex_Volume spectrum) {
+		if (!evenOrOne(slices) || !evenOrOne(height) || !evenOrOne(width))
+			return false;
+		
+		float[] data = spectrum.data;
+		for (int s = 0; s < spectrum.slices; s++)
+			for (int r = 0; r < spectrum.height; r++) {
+				int start = 2*((s*spectrum.height + r)*spectrum.width);
+				for (int c = (s + r + 1) % 2; c < spectrum.width; c += 2) {
+					data[start + 2*c] = -data[start + 2*c];
+					data[start + 2*c + 1] = -data[start + 2*c + 1];
+				}
+			}
+		
+		return true;
+	}
+	
+	private static boolean evenOrOne(int n) {
+		return n == 1 || n % 2 == 0;
+	}
+}
\ No newline at end of file
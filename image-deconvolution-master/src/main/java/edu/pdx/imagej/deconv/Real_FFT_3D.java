@@ -0,0 +1,188 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.stream.IntStream;
+
+import org.jtransforms.fft.FloatFFT_1D;
+
+// 3D FFT of real data that keeps only the non-redundant half of the spectrum. The transform of a real volume is Hermitian,
+// so columns width/2 + 1 ... width - 1 are conjugates of stored ones and are dropped: the spectrum of a
+// slices x height x width volume is a complex slices x height x (width/2 + 1) volume. Compared to complexForward on
+// zero-padded data that is half the memory and about half the work.
+//
+// Rows are transformed with realForward/realInverse, then the height and slice axes with complex 1D transforms.
+// Dimensions of length 1 are allowed (unlike FloatFFT_3D) and are simply not transformed.
+public class Real_FFT_3D {
+	
+	private final int slices;
+	private final int height;
+	private final int width;
+	private final int spectrumWidth;
+	private final FloatFFT_1D fftWidth;
+	private final FloatFFT_1D fftHeight;
+	private final FloatFFT_1D fftSlices;
+	
+	public Real_FFT_3D(int i_slices, int i_height, int i_width) {
+		slices = i_slices;
+		height = i_height;
+		width = i_width;
+		spectrumWidth = width / 2 + 1;
+		fftWidth = width > 1 ? new FloatFFT_1D((long)width) : null;
+		fftHeight = height > 1 ? new FloatFFT_1D((long)height) : null;
+		fftSlices = slices > 1 ? new FloatFFT_1D((long)slices) : null;
+	}
+	
+	// number of complex columns in the half spectrum
+	public int getSpectrumWidth() {
+		return spectrumWidth;
+	}
+	
+	// allocate a volume that can hold the half spectrum
+	public Complex_Volume newSpectrum() {
+		return new Complex_Volume(slices, height, spectrumWidth);
+	}
+	
+	// transform vol into spectrum. vol is left unchanged
+	public void forward(Real_Volume vol, Complex_Volume spectrum) {
+		checkShapes(vol, spectrum);
+		
+		IntStream.range(0, slices).parallel().forEach(s -> {
+			float[] row = new float[width];
+			for (int r = 0; r < height; r++) {
+				System.arraycopy(vol.data, (s*height + r)*width, row, 0, width);
+				if (fftWidth != null)
+					fftWidth.realForward(row);
+				unpackRow(row, spectrum.data, 2*(s*height + r)*spectrumWidth);
+			}
+			transformColumns(spectrum.data, s, true);
+		});
+		transformSlices(spectrum.data, true);
+	}
+	
+	// transform spectrum back into vol, scaled so that inverse(forward(x)) == x. spectrum is overwritten
+	public void inverse(Complex_Volume spectrum, Real_Volume vol) {
+		checkShapes(vol, spectrum);
+		
+		transformSlices(spectrum.data, false);
+		IntStream.range(0, slices).parallel().forEach(s -> {
+			transformColumns(spectrum.data, s, false);
+			float[] row = new float[width];
+			for (int r = 0; r < height; r++) {
+				packRow(spectrum.data, 2*(s*height + r)*spectrumWidth, row);
+				if (fftWidth != null)
+					fftWidth.realInverse(row, true);
+				System.arraycopy(row, 0, vol.data, (s*height + r)*width, width);
+			}
+		});
+	}
+	
+	// convenience versions that allocate the output
+	public Complex_Volume forward(Real_Volume vol) {
+		Complex_Volume spectrum = newSpectrum();
+		forward(vol, spectrum);
+		return spectrum;
+	}
+	
+	public Real_Volume inverse(Complex_Volume spectrum) {
+		Real_Volume vol = new Real_Volume(slices, height, width);
+		inverse(spectrum, vol);
+		return vol;
+	}
+	
+	// expand the packed output of realForward into spectrumWidth interleaved values. For even widths a[1] holds
+	// Re[width/2], for odd widths it holds Im[(width-1)/2] and Re[(width-1)/2] sits at a[width-1]
+	private void unpackRow(float[] row, float[] dest, int pos) {
+		dest[pos] = row[0];
+		dest[pos + 1] = 0;
+		if (width == 1)
+			return;
+		
+		int last = spectrumWidth - 1;
+		System.arraycopy(row, 2, dest, pos + 2, 2*(last - 1));
+		if (width % 2 == 0) {
+			dest[pos + 2*last] = row[1];
+			dest[pos + 2*last + 1] = 0;
+		}
+		else {
+			dest[pos + 2*last] = row[width - 1];
+			dest[pos + 2*last + 1] = row[1];
+		}
+	}
+	
+	// inverse of unpackRow, the imaginary parts that realInverse has no room for are zero for Hermitian data
+	private void packRow(float[] src, int pos, float[] row) {
+		row[0] = src[pos];
+		if (width == 1)
+			return;
+		
+		int last = spectrumWidth - 1;
+		System.arraycopy(src, pos + 2, row, 2, 2*(last - 1));
+		if (width % 2 == 0)
+			row[1] = src[pos + 2*last];
+		else {
+			row[width - 1] = src[pos + 2*last];
+			row[1] = src[pos + 2*last + 1];
+		}
+	}
+	
+	// complex transforms along the height axis of one slice
+	private void transformColumns(float[] data, int s, boolean forward) {
+		if (fftHeight == null)
+			return;
+		
+		float[] column = new float[2*height];
+		int rowLength = 2*spectrumWidth;
+		int sliceStart = s*height*rowLength;
+		for (int c = 0; c < spectrumWidth; c++) {
+			for (int r = 0; r < height; r++) {
+				column[2*r] = data[sliceStart + r*rowLength + 2*c];
+				column[2*r + 1] = data[sliceStart + r*rowLength + 2*c + 1];
+			}
+			
+			if (forward)
+				fftHeight.complexForward(column);
+			else
+				fftHeight.complexInverse(column, true);
+			
+			for (int r = 0; r < height; r++) {
+				data[sliceStart + r*rowLength + 2*c] = column[2*r];
+				data[sliceStart + r*rowLength + 2*c + 1] = column[2*r + 1];
+			}
+		}
+	}
+	
+	// complex transforms along the slice axis, one row position at a time
+	private void transformSlices(float[] data, boolean forward) {
+		if (fftSlices == null)
+			return;
+		
+		int rowLength = 2*spectrumWidth;
+		int sliceLength = height*rowLength;
+		IntStream.range(0, height).parallel().forEach(r -> {
+			float[] pillar = new float[2*slices];
+			for (int c = 0; c < spectrumWidth; c++) {
+				int start = r*rowLength + 2*c;
+				for (int s = 0; s < slices; s++) {
+					pillar[2*s] = data[start + s*sliceLength];
+					pillar[2*s + 1] = data[start + s*sliceLength + 1];
+				}
+				
+				if (forward)
+					fftSlices.complexForward(pillar);
+				else
+					fftSlices.complexInverse(pillar, true);
+				
+				for (int s = 0; s < slices; s++) {
+					data[start + s*sliceLength] = pillar[2*s];
+					data[start + s*sliceLength + 1] = pillar[2*s + 1];
+				}
+			}
+		});
+	}
+	
+	private void checkShapes(Real_Volume vol, Complex_Volume spectrum) {
+		if (vol.slices != slices || vol.height != height || vol.width != width)
+			throw new IllegalArgumentException("Volume does not match a " + slices + "x" + height + "x" + width + " transform.");
+		if (spectrum.slices != slices || spectrum.height != height || spectrum.width != spectrumWidth)
+			throw new IllegalArgumentException("Spectrum does not match a " + slices + "x" + height + "x" + spectrumWidth + " half spectrum.");
+	}
+}
\ No newline at end of file
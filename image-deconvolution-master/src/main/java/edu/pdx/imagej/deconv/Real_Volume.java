@@ -0,0 +1,95 @@
+package edu.pdx.imagej.deconv;
+
+// real 3D matrix stored in a single contiguous array. voxel (slice, row, column) lives at data[(slice*height + row)*width + column],
+// which is the same row-major order ImageJ uses for the pixels of each slice
+public class Real_Volume {
+	public final int slices;
+	public final int height;
+	public final int width;
+	public final float[] data;
+	
+	// allocate an empty volume
+	public Real_Volume(int i_slices, int i_height, int i_width) {
+		this(i_slices, i_height, i_width, new float[checkedLength(i_slices, i_height, i_width, 1)]);
+	}
+	
+	// wrap an existing array without copying it
+	public Real_Volume(int i_slices, int i_height, int i_width, float[] i_data) {
+		if (i_data.length != checkedLength(i_slices, i_height, i_width, 1))
+			throw new IllegalArgumentException("Data length " + i_data.length + " does not match a " + i_slices + "x" + i_height + "x" + i_width + " volume.");
+		
+		slices = i_slices;
+		height = i_height;
+		width = i_width;
+		data = i_data;
+	}
+	
+	// number of voxels in the volume
+	public int size() {
+		return data.length;
+	}
+	
+	// number of voxels in one slice
+	public int sliceSize() {
+		return height * width;
+	}
+	
+	public int index(int slice, int row, int column) {
+		return (slice * height + row) * width + column;
+	}
+	
+	public float get(int slice, int row, int column) {
+		return data[index(slice, row, column)];
+	}
+	
+	public void set(int slice, int row, int column, float value) {
+		data[index(slice, row, column)] = value;
+	}
+	
+	public boolean sameShape(Real_Volume other) {
+		return slices == other.slices && height == other.height && width == other.width;
+	}
+	
+	public Real_Volume copy() {
+		return new Real_Volume(slices, height, width, data.clone());
+	}
+	
+	// copy a jagged [slices][height][width] matrix into a new volume
+	public static Real_Volume fromArray(float[][][] mat) {
+		Real_Volume ret = new Real_Volume(mat.length, mat[0].length, mat[0][0].length);
+		int pos = 0;
+		for (int i = 0; i < ret.slices; i++)
+			for (int j = 0; j < ret.height; j++) {
+				System.arraycopy(mat[i][j], 0, ret.data, pos, ret.width);
+				pos += ret.width;
+			}
+		
+		return ret;
+	}
+	
+	// copy the volume back into a jagged [slices][height][width] matrix
+	public float[][][] toArray() {
+		float[][][] ret = new float[slices][height][width];
+		int pos = 0;
+		for (int i = 0; i < slices; i++)
+			for (int j = 0; j < height; j++) {
+				System.arraycopy(data, pos, ret[i][j], 0, width);
+				pos += width;
+			}
+		
+		return ret;
+	}
+	
+	// length of the backing array for the given dimensions. components is 1 for real and 2 for complex volumes
+	static int checkedLength(int slices, int height, int width, int components) {
+		if (slices <= 0 || height <= 0 || width <= 0)
+			throw new IllegalArgumentException("Volume dimensions must be positive: " + slices + "x" + height + "x" + width + ".");
+		
+		long length = (long)slices * height * width * components;
+		// leave some headroom, the JVM cannot allocate arrays right up to Integer.MAX_VALUE
+		if (length > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("A " + slices + "x" + height + "x" + width + " volume is too large for a single array.");
+		
+		return (int)length;
+	}
+}
\ No newline at end of file
@@ -31,6 +31,8 @@ public class Regularization implements PlugInFilter {
 	private float smooth;
 	private float nonlinearity;
 	private int iterations;
+	private float tolerance;
+	private boolean warm_start;
 	private float lateral_spacing;
 	private float axial_spacing;
 	private String choice;
@@ -88,6 +90,8 @@ public class Regularization implements PlugInFilter {
 		gd.addNumericField("Smoothness Factor: ", 2, 0);
 		gd.addNumericField("Nonlinearity Factor: ", 0.1, 1);
 		gd.addNumericField("# Iterations: ", 3, 0);
+		gd.addNumericField("Stop at relative change (0 to run every iteration): ", 0, 4);
+		gd.addCheckbox("Start each frame from the previous result?", false);
 		gd.addNumericField("Lateral Spacing (o.u.): ", 0.178223, 3);
 		gd.addNumericField("Axial Spacing (o.u.): ", 10, 0);
 		gd.addCheckbox("Normalize PSF?", true);
@@ -108,8 +112,10 @@ public class Regularization implements PlugInFilter {
 		smooth = (float) gd.getNextNumber();
 		nonlinearity = (float) gd.getNextNumber();
 		iterations = (int) gd.getNextNumber();
+		tolerance = (float) gd.getNextNumber();
 		lateral_spacing = (float) gd.getNextNumber();
 		axial_spacing = (float) gd.getNextNumber();
+		warm_start = gd.getNextBoolean();
 		normalizePSF = gd.getNextBoolean();
 		decon_hyper = !gd.getNextBoolean();
 		save_files = gd.getNextBoolean();
@@ -216,114 +222,75 @@ public class Regularization implements PlugInFilter {
 		
 		int decon_loops = 1;
 		float[][][][] ampMat = new float[1][1][1][1];
-		ImagePlus tempImg = IJ.createHyperStack("blank", 1, 1, 1, 1, 1, 32);
-		// convert image stacks to matrices
+		// hyperstacks are read one frame at a time. Results too large for the heap go to memory-mapped scratch files
+		Frame_Store results = null;
+		Frame_Store phaseResults = null;
 		if (decon_hyper) {
-			ampMat = diu.getMatrix4D(image_amp);
-			for (int i = 0; i < ampMat.length; i++)
-				diu.linearShift(ampMat[i], 0, 1);
+			if (decon_choice != "Standard")
+				image_phase = WindowManager.getImage(diu.getImageTitle(phase_selection));
+			if (useFrameStore()) {
+				results = new Frame_Store(image_amp.getNFrames(), image_amp.getNSlices(), image_amp.getHeight(), image_amp.getWidth());
+				if (decon_choice != "Standard")
+					phaseResults = new Frame_Store(image_amp.getNFrames(), image_amp.getNSlices(), image_amp.getHeight(), image_amp.getWidth());
+			}
 		}
 		else
 			decon_loops = stack_list.length;
 		
-		// initialize the regularization
+		// when deconvolving from files the next stacks are read, and the previous results saved, in the background
+		File_Pipeline<float[][][][]> files = null;
+		if (!decon_hyper && decon_choice == "Standard")
+			files = new File_Pipeline<float[][][][]>(stack_path, stack_list, null, null, diu::getMatrix4D);
+		else if (!decon_hyper)
+			files = new File_Pipeline<float[][][][]>(stack_path, stack_list, stack_path_phase, stack_list_phase, diu::getMatrix4D);
+		
+		// initialize the regularization. The PSF terms are the same for every frame and file, so they are computed once.
+		// With warm start every frame starts from the result of the one before
+		Regularization_Utils.Shared psfTerms = new Regularization_Utils.Shared(psfMat, lateral_spacing, axial_spacing, smooth, decon_choice == "Standard");
+		float[][][] previousGuess = null;
 		for (int j = 0; j < decon_loops; j++) {
+			int count = image_amp.getNFrames();
 			if (!decon_hyper) {
-				tempImg = IJ.openImage(stack_path + stack_list[j]);
-				ampMat = diu.getMatrix4D(tempImg);
+				File_Pipeline.Frame<float[][][][]> frame = files.next();
 				if (decon_choice == "Standard")
-					ampMat = diu.toFFTform(ampMat);
-				tempImg.close();
-				if (decon_choice != "Standard") {
-					tempImg = IJ.openImage(stack_path_phase + stack_list_phase[j]);
-					if (decon_choice == "Complex (Polar)") {
-						ampMat = diu.toFFTform(ampMat, diu.getMatrix4D(tempImg));
-						tempImg.close();
-					}
-					else {
-						ampMat = diu.toFFTformRect(ampMat, diu.getMatrix4D(tempImg));
-						tempImg.close();
-					}
-				}
-			}
-			else {
-				if (decon_choice == "Standard")
-					ampMat = diu.toFFTform(ampMat);
-				else {
-					image_phase = WindowManager.getImage(diu.getImageTitle(phase_selection));
-					phaseMat = diu.getMatrix4D(image_phase);
-					
-					if (decon_choice == "Complex (Polar)")
-						ampMat = diu.toFFTform(ampMat, phaseMat);
-					else
-						ampMat = diu.toFFTformRect(ampMat, phaseMat);
-					
-					tempImg.close();
-				}
+					ampMat = diu.toFFTform(frame.amp);
+				else if (decon_choice == "Complex (Polar)")
+					ampMat = diu.toFFTform(frame.amp, frame.phase);
+				else
+					ampMat = diu.toFFTformRect(frame.amp, frame.phase);
+				count = ampMat.length;
 			}
-			Regularization_Utils ru = new Regularization_Utils(ampMat, psfMat, lateral_spacing, axial_spacing, smooth, nonlinearity);
-			// deconvolve according to the flow chart in Arigovindan+ 2013 (supplementary information)
-			for (int i = 0; i < iterations; i++) {
-				IJ.showStatus("Processing iteration " + Integer.toString(i+1) + " of " + Integer.toString(iterations) + "...");
-			
-				ru.get_dMat();
-				ru.get_uMat();
 			
-				ru.get_guessTilde();
-				ru.getEnergyMeasure(true);
-				ArrayList<Double> errors = new ArrayList<Double>();
-				errors.add((double)(ru.error - ru.errorTilde));
-				ArrayList<Double> tildeCounts = new ArrayList<Double>();
-				tildeCounts.add(1.0);
-				while (!ru.checkTilde()) {
-					Plot plot = new Plot("Error Plot (Iteration " + Integer.toString(i+1) + ")", "Tilde Check", "Error Difference");
-					plot.addPoints(tildeCounts, errors, Plot.CIRCLE);
-					plot.addPoints(tildeCounts, errors, Plot.LINE);
-					if (Math.abs(errors.get(0)) > 1000)
-						plot.setAxisYLog(true);
-					PlotWindow plotwindow = plot.show();
-					
-					IJ.showStatus("Tilde check #" + Integer.toString(tildeCount) + " on iteration " + Integer.toString(i + 1) + "...");
-					ru.damping = (float) (0.7 * ru.damping);
-					ru.get_guessTilde();
-					ru.getEnergyMeasure(true);
-					tildeCounts.add((double)tildeCount);
-					errors.add((double)(ru.error - ru.errorTilde));
-					plotwindow.close();
-					
-					tildeCount += 1;
-				}
-				tildeCount = 2;
+			// frames do not depend on each other, so each one is regularized on its own and can stop on its own
+			float[][][][] resultMat = new float[count][][][];
+			phaseMat = decon_choice == "Standard" ? null : new float[count][][][];
+			for (int f = 0; f < count; f++) {
+				float[][][] input = decon_hyper ? readFrame(f) : ampMat[f];
+				Regularization_Utils ru = new Regularization_Utils(new float[][][][] {input}, psfTerms, nonlinearity);
+				if (warm_start)
+					ru.warmStart(0, previousGuess);
+				int used = regularize(ru);
+				previousGuess = ru.guess[0];
+				if (tolerance > 0)
+					IJ.log("Frame " + Integer.toString((decon_hyper ? f : j) + 1) + ": " + Integer.toString(used) + " of " + Integer.toString(iterations) + " iterations");
 				
-				ru.update();
-			}
-			
-			if (decon_choice == "Standard") {
-				ampMat = diu.getAmplitudeMat(ru.guess);
-				diu.formatIFFT(ampMat);
-				
-				diu.resliceER(ampMat);
-			}
-			else if (decon_choice == "Complex (Polar)") {
-				ampMat = diu.getAmplitudeMat(ru.guess);
-				phaseMat = diu.getPhaseMat(ru.guess);
-				diu.formatIFFT(ampMat);
-				diu.formatIFFT(phaseMat);
-				
-				diu.resliceER(ampMat);
-				diu.resliceER(phaseMat);
-			}
-			else {
-				ampMat = diu.getReMat(ru.guess);
-				phaseMat = diu.getImMat(ru.guess);
-				diu.formatIFFT(ampMat);
-				diu.formatIFFT(phaseMat);
-				
-				diu.resliceER(ampMat);
-				diu.resliceER(phaseMat);
+				float[][][][] result = finishFrame(ru.guess[0]);
+				if (results != null) {
+					results.put(f, Real_Volume.fromArray(result[0]));
+					if (phaseResults != null)
+						phaseResults.put(f, Real_Volume.fromArray(result[1]));
+				}
+				else {
+					resultMat[f] = result[0];
+					if (phaseMat != null)
+						phaseMat[f] = result[1];
+				}
 			}
+			ampMat = resultMat;
 			
-			if (decon_hyper) {
+			if (results != null)
+				output_stores(results, phaseResults, cal);
+			else if (decon_hyper) {
 				if (!save_files) {
 					if (decon_choice == "Standard") {
 						ImagePlus result = diu.reassign(ampMat, choice, "Result");
@@ -389,33 +356,29 @@ public class Regularization implements PlugInFilter {
 						imgMatPhase[j] = phaseMat[0];
 				}
 				else {
-					if (decon_choice == "Standard") {
-						ImagePlus result = diu.reassign(ampMat[0], choice, Integer.toString(j));
-						result.setCalibration(cal);
-						IJ.saveAsTiff(result, save_path + Integer.toString(j) + ".tif");
-					}
-					else if (decon_choice == "Complex (Polar)") {
-						ImagePlus amp = diu.reassign(ampMat[0], choice, Integer.toString(j));
-						amp.setCalibration(cal);
-						IJ.saveAsTiff(amp, save_path + "Amplitude" + divisor + Integer.toString(j) + ".tif");
-						
-						ImagePlus phase = diu.reassign(phaseMat[0], choice, Integer.toString(j));
-						phase.setCalibration(cal);
-						IJ.saveAsTiff(phase, save_path + "Phase" + divisor + Integer.toString(j) + ".tif");
-					}
-					else {
-						ImagePlus real = diu.reassign(ampMat[0], choice, Integer.toString(j));
-						real.setCalibration(cal);
-						IJ.saveAsTiff(real, save_path + "Real" + divisor + Integer.toString(j) + ".tif");
-						
-						ImagePlus imag = diu.reassign(phaseMat[0], choice, Integer.toString(j));
-						imag.setCalibration(cal);
-						IJ.saveAsTiff(imag, save_path + "Imaginary" + divisor + Integer.toString(j) + ".tif");
-					}
+					// the result arrays are new for every file, so the writer can convert them while the next one runs
+					int index = j;
+					float[][][] result = ampMat[0];
+					float[][][] resultPhase = decon_choice == "Standard" ? null : phaseMat[0];
+					if (decon_choice == "Standard")
+						files.write(() -> save_frame(result, cal, "", index));
+					else if (decon_choice == "Complex (Polar)")
+						files.write(() -> {
+							save_frame(result, cal, "Amplitude" + divisor, index);
+							save_frame(resultPhase, cal, "Phase" + divisor, index);
+						});
+					else
+						files.write(() -> {
+							save_frame(result, cal, "Real" + divisor, index);
+							save_frame(resultPhase, cal, "Imaginary" + divisor, index);
+						});
 				}
 			}
 		}
 		
+		if (files != null)
+			files.close();
+		
 		if (!decon_hyper && !save_files) {
 			diu.resliceER(imgMat);
 			diu.resliceER(imgMatPhase);
@@ -447,6 +410,131 @@ public class Regularization implements PlugInFilter {
 		}
 	}
 	
+	// deconvolve according to the flow chart in Arigovindan+ 2013 (supplementary information). Stops early once the
+	// guess changes by less than the tolerance, returns the number of iterations done
+	private int regularize(Regularization_Utils ru) {
+		for (int i = 0; i < iterations; i++) {
+			IJ.showStatus("Processing iteration " + Integer.toString(i+1) + " of " + Integer.toString(iterations) + "...");
+			
+			ru.get_dMat();
+			ru.get_uMat();
+			
+			ru.get_guessTilde();
+			ru.getEnergyMeasure(true);
+			ArrayList<Double> errors = new ArrayList<Double>();
+			errors.add((double)(ru.error - ru.errorTilde));
+			ArrayList<Double> tildeCounts = new ArrayList<Double>();
+			tildeCounts.add(1.0);
+			while (!ru.checkTilde()) {
+				Plot plot = new Plot("Error Plot (Iteration " + Integer.toString(i+1) + ")", "Tilde Check", "Error Difference");
+				plot.addPoints(tildeCounts, errors, Plot.CIRCLE);
+				plot.addPoints(tildeCounts, errors, Plot.LINE);
+				if (Math.abs(errors.get(0)) > 1000)
+					plot.setAxisYLog(true);
+				PlotWindow plotwindow = plot.show();
+				
+				IJ.showStatus("Tilde check #" + Integer.toString(tildeCount) + " on iteration " + Integer.toString(i + 1) + "...");
+				ru.damping = (float) (0.7 * ru.damping);
+				ru.get_guessTilde();
+				ru.getEnergyMeasure(true);
+				tildeCounts.add((double)tildeCount);
+				errors.add((double)(ru.error - ru.errorTilde));
+				plotwindow.close();
+				
+				tildeCount += 1;
+			}
+			tildeCount = 2;
+			
+			ru.update();
+			if (tolerance > 0 && ru.change < tolerance)
+				return i + 1;
+		}
+		
+		return iterations;
+	}
+	
+	// frame f of the hyperstack in FFT form, with the amplitudes shifted between 0 and 1
+	private float[][][] readFrame(int f) {
+		Real_Volume amp = diu.getVolume(image_amp, f);
+		diu.linearShift(amp, 0, 1);
+		if (decon_choice == "Standard")
+			return diu.toFFTform(amp).toArray();
+		else if (decon_choice == "Complex (Polar)")
+			return diu.toFFTform(amp, diu.getVolume(image_phase, f)).toArray();
+		else
+			return diu.toFFTformRect(amp, diu.getVolume(image_phase, f)).toArray();
+	}
+	
+	// {amplitude, phase} or {real, imaginary} of a regularized frame, resliced for display. The phase is null for
+	// standard deconvolution
+	private float[][][][] finishFrame(float[][][] guess) {
+		float[][][][] ret;
+		if (decon_choice == "Standard")
+			ret = new float[][][][] {diu.getAmplitudeMat(guess)};
+		else if (decon_choice == "Complex (Polar)")
+			ret = new float[][][][] {diu.getAmplitudeMat(guess), diu.getPhaseMat(guess)};
+		else
+			ret = new float[][][][] {diu.getReMat(guess), diu.getImMat(guess)};
+		diu.formatIFFT(ret);
+		diu.resliceER(ret);
+		
+		return decon_choice == "Standard" ? new float[][][][] {ret[0], null} : ret;
+	}
+	
+	// the input, the results and the images made from them have to fit on the heap at once, as well as the frame being
+	// regularized (Regularization_Utils holds about 20 complex volumes per frame)
+	private boolean useFrameStore() {
+		long volume = 4L * image_amp.getWidth() * image_amp.getHeight() * image_amp.getNSlices();
+		long bytes = volume * image_amp.getNFrames() * (decon_choice == "Standard" ? 2 : 4) + volume * 40;
+		return !Frame_Store.fitsInHeap(bytes);
+	}
+	
+	// save the results of a hyperstack too large for the heap frame by frame, or show them as virtual stacks
+	private void output_stores(Frame_Store results, Frame_Store phaseResults, Calibration cal) {
+		String[] names;
+		if (decon_choice == "Standard")
+			names = new String[] {"Result"};
+		else if (decon_choice == "Complex (Polar)")
+			names = new String[] {"Amplitude", "Phase"};
+		else
+			names = new String[] {"Real", "Imaginary"};
+		Frame_Store[] stores = {results, phaseResults};
+		
+		if (save_files) {
+			IJ.showStatus("Saving images...");
+			for (int i = 0; i < results.frames; i++)
+				for (int j = 0; j < names.length; j++) {
+					ImagePlus tempImg = diu.reassign(stores[j].get(i), choice, Integer.toString(i));
+					tempImg.setCalibration(cal);
+					if (decon_choice == "Standard")
+						IJ.saveAsTiff(tempImg, save_path + Integer.toString(i) + ".tif");
+					else
+						IJ.saveAsTiff(tempImg, save_path + names[j] + divisor + Integer.toString(i) + ".tif");
+				}
+			
+			results.close();
+			if (phaseResults != null)
+				phaseResults.close();
+		}
+		else {
+			// the shown images read their slices from the stores, which are closed when the images are
+			IJ.showStatus("Constructing result...");
+			for (int j = 0; j < names.length; j++) {
+				ImagePlus tempImg = diu.reassign(stores[j], choice, names[j]);
+				tempImg.setCalibration(cal);
+				tempImg.show();
+			}
+		}
+	}
+	
+	// reassign one result and save it as frame i, runs on the file pipeline's writer thread
+	private void save_frame(float[][][] mat, Calibration cal, String folder, int i) {
+		ImagePlus tempImg = diu.reassign(mat, choice, Integer.toString(i));
+		tempImg.setCalibration(cal);
+		IJ.saveAsTiff(tempImg, save_path + folder + Integer.toString(i) + ".tif");
+		tempImg.close();
+	}
+	
 	public void showAbout() {
 		IJ.showMessage("DeconvolveImage",
 			"Deconvolves DHM images using entropy regularization."
@@ -1,34 +1,22 @@
 package edu.pdx.imagej.deconv;
 
-import org.jtransforms.fft.FloatFFT_3D;
+import java.util.stream.IntStream;
 
 public class Regularization_Utils {
 	
 	private Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
-	private FloatFFT_3D fft3D;
 	private int width;
 	private int height;
 	private int slices;
 	private int frames;
 	private float smooth;
 	private float nonlinearity;
-	private float dx;
-	private float dz;
-	private float wx;
-	private float wy;
-	private float wz;
-	private float spacing_ratio;
-	private float H0 = 0;
+	private float H0;
+	private boolean realData;
 	
-	private float[][][] L1;
-	private float[][][] L2;
-	private float[][][] L3;
-	private float[][][] L4;
-	private float[][][] L5;
-	private float[][][] L6;
+	private Shared psf;
+	private float[][][] filters;
 	private float[][][] identityMat;
-	private float[][][] psfMat;
-	private float[][][] pMatFT;
 	private float[][][] piMatFT;
 	private float[][][][] imgMat;
 	private float[][][][] wMat;
@@ -40,34 +28,128 @@ public class Regularization_Utils {
 	private float[][][][] energyMeasureTilde;
 	private float[][][][] wMatTilde;
 	private float[][][][] nPrimeTilde;
+	private float[][][][] dataTerm;
 	
 	public float damping = (float) 0.8;
 	public float error;
 	public float errorTilde;
+	public float change;
 	public float[][][][] guess;
 	
-	// mass initialization, assume image_mat and psf_mat are in FFT form
-	public Regularization_Utils(float[][][][] image_mat, float[][][] psf_mat, float img_dx, float img_dz, float smooth_p, float nonlinearity_p) {
+	// everything that only depends on the PSF, the spacing and the smoothness: the filters, the P_I matrix, the transformed
+	// PSF and its mirror image, H0, and the part of g0 that does not depend on the image. Built once and shared by the
+	// Regularization_Utils of every frame and file. psf_mat is in FFT form and left unchanged, real_data is true when
+	// the PSF and the images have zero imaginary parts
+	public static class Shared {
+		private final int width;
+		private final int height;
+		private final int slices;
+		private final float smooth;
+		private final float H0;
+		private final boolean realData;
+		private final float[][][] filters;
+		private final float[][][] identityMat;
+		private final float[][][] piMatFT;
+		private final float[][][] guessFilterFT;
+		private final Prepared_PSF psfFT;
+		private final Prepared_PSF psfMirroredFT;
+		private final Prepared_PSF psfMirroredRealFT;
+		
+		public Shared(float[][][] psf_mat, float img_dx, float img_dz, float smooth_p, boolean real_data) {
+			Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
+			width = psf_mat[0][0].length / 2;
+			height = psf_mat[0].length;
+			slices = psf_mat.length;
+			smooth = smooth_p;
+			realData = real_data;
+			float spacing_ratio = img_dx / img_dz;
+			
+			// L1 - L6 are the filters discussed in Arigovindan+ 2013 (supplementary information): second differences along x,
+			// y and z, and mixed first differences in the xy, yz and xz planes. Each row is one tap {slice, row, column, weight},
+			// (L g)(x) is the sum of weight * g(x - offset) over the taps, see applyFilter
+			float mixed = (float) Math.sqrt(2);
+			filters = new float[][][] {
+				{{0, 0, -1, 1}, {0, 0, 0, -2}, {0, 0, 1, 1}},
+				{{0, -1, 0, 1}, {0, 0, 0, -2}, {0, 1, 0, 1}},
+				{{-1, 0, 0, spacing_ratio * spacing_ratio}, {0, 0, 0, -2 * spacing_ratio * spacing_ratio}, {1, 0, 0, spacing_ratio * spacing_ratio}},
+				{{0, 0, 0, mixed}, {0, 0, 1, -mixed}, {0, 1, 0, -mixed}, {0, 1, 1, mixed}},
+				{{0, 0, 0, mixed * spacing_ratio}, {0, 1, 0, -mixed * spacing_ratio}, {1, 0, 0, -mixed * spacing_ratio}, {1, 1, 0, mixed * spacing_ratio}},
+				{{0, 0, 0, mixed * spacing_ratio}, {0, 0, 1, -mixed * spacing_ratio}, {1, 0, 0, -mixed * spacing_ratio}, {1, 0, 1, mixed * spacing_ratio}}
+			};
+			
+			float h0 = 0;
+			float[][][] regularizerFT = new float[slices][height][2*width];
+			identityMat = new float[slices][height][2*width];
+			for (int i = 0; i < slices; i++)
+				for (int j = 0; j < height; j++)
+					for (int k = 0; k < width; k++) {
+						h0 += psf_mat[i][j][2*k] * psf_mat[i][j][2*k];
+						
+						identityMat[i][j][2*k] = 1;
+						identityMat[i][j][2*k + 1] = 0;
+						
+						// 1 + the sum of |L|^2 over the filters, at the frequencies of the FFT's bins. A second difference has
+						// the response 2 cos(w) - 2, a mixed difference |1 - e^(-iw1)| |1 - e^(-iw2)| times its weight
+						double cx = 2 - 2 * Math.cos(2 * Math.PI * k / width);
+						double cy = 2 - 2 * Math.cos(2 * Math.PI * j / height);
+						double cz = 2 - 2 * Math.cos(2 * Math.PI * i / slices);
+						double ratio = spacing_ratio * spacing_ratio;
+						regularizerFT[i][j][2*k] = (float) (1 + cx*cx + cy*cy + ratio*ratio * cz*cz + 2 * (cx*cy + ratio * cy*cz + ratio * cx*cz));
+						regularizerFT[i][j][2*k + 1] = 0;
+					}
+			H0 = h0;
+			
+			// the P and P_I matrices according to the paper, P_I is kept in space. g0 of a frame is conj(H) / P times its
+			// transform, see initializeGuess
+			float[][][] psfMatFT = Complex_Volume.fromArray(psf_mat).toArray();
+			FFT_Cache.complexForward(psfMatFT);
+			float[][][] pMatFT = diu.matrixOperations(diu.complexConj(psfMatFT), psfMatFT, "multiply");
+			pMatFT = diu.matrixOperations(pMatFT, diu.scaleMat(regularizerFT, smooth), "add");
+			
+			float[][][] sqrtMat = new float[slices][height][2*width];
+			float[] sqrt;
+			for (int i = 0; i < slices; i++)
+				for (int j = 0; j < height; j++)
+					for (int k = 0; k < width; k++) {
+						sqrt = sqrtComplex(pMatFT[i][j][2*k], pMatFT[i][j][2*k + 1]);
+						sqrtMat[i][j][2*k] = sqrt[0];
+						sqrtMat[i][j][2*k + 1] = sqrt[1];
+					}
+			piMatFT = diu.matrixOperations(identityMat, sqrtMat, "divide");
+			FFT_Cache.complexInverse(piMatFT);
+			
+			guessFilterFT = diu.matrixOperations(diu.matrixOperations(identityMat, pMatFT, "divide"), diu.complexConj(psfMatFT), "multiply");
+			
+			// the PSF and its mirror image are transformed once for all of the convolutions in getEnergyMeasure, and the
+			// real mirror image once for the data terms of real data
+			float[][][] psfMirrored = negativeIndex(psf_mat);
+			psfFT = new Prepared_PSF(Complex_Volume.fromArray(psf_mat));
+			psfMirroredFT = new Prepared_PSF(Complex_Volume.fromArray(psfMirrored));
+			psfMirroredRealFT = realData ? new Prepared_PSF(Real_Volume.fromArray(diu.getReMat(psfMirrored))) : null;
+		}
+	}
+	
+	// mass initialization, assume image_mat and psf_mat are in FFT form. real_data is true when both have zero imaginary parts
+	public Regularization_Utils(float[][][][] image_mat, float[][][] psf_mat, float img_dx, float img_dz, float smooth_p, float nonlinearity_p, boolean real_data) {
+		this(image_mat, new Shared(psf_mat, img_dx, img_dz, smooth_p, real_data), nonlinearity_p);
+	}
+	
+	// initialization with the PSF terms of another instance, image_mat is in FFT form and has the PSF's size
+	public Regularization_Utils(float[][][][] image_mat, Shared psf_terms, float nonlinearity_p) {
 		imgMat = image_mat;
-		psfMat = psf_mat;
-		width = imgMat[0][0][0].length / 2;
-		height = imgMat[0][0].length;
-		slices = imgMat[0].length;
+		psf = psf_terms;
+		width = psf.width;
+		height = psf.height;
+		slices = psf.slices;
 		frames = imgMat.length;
-		dx = img_dx;
-		dz = img_dz;
-		spacing_ratio = dx / dz;
-		smooth = smooth_p;
+		smooth = psf.smooth;
 		nonlinearity = nonlinearity_p;
-		fft3D = new FloatFFT_3D((long)slices, (long)height, (long)width);
+		realData = psf.realData;
+		H0 = psf.H0;
+		filters = psf.filters;
+		identityMat = psf.identityMat;
+		piMatFT = psf.piMatFT;
 		
-		L1 = new float[slices][height][2*width];
-		L2 = new float[slices][height][2*width];
-		L3 = new float[slices][height][2*width];
-		L4 = new float[slices][height][2*width];
-		L5 = new float[slices][height][2*width];
-		L6 = new float[slices][height][2*width];
-		identityMat = new float[slices][height][2*width];
 		wMat = new float[frames][slices][height][2*width];
 		dMat = new float[frames][slices][height][2*width];
 		uMat = new float[frames][slices][height][2*width];
@@ -79,100 +161,34 @@ public class Regularization_Utils {
 		guess = new float[frames][slices][height][2*width];
 		energyMeasure = new float[frames][slices][height][2*width];
 		nPrime = new float[frames][slices][height][2*width];
-		pMatFT = new float[slices][height][2*width];
-		piMatFT = new float[slices][height][2*width];
-		
-		for (int i = 0; i < slices; i++)
-			for (int j = 0; j < height; j++)
-				for (int k = 0; k < width; k++) {
-					H0 += psfMat[i][j][2*k] * psfMat[i][j][2*k];
-					
-					// spatial frequencies
-					wx = (float) (2 * Math.PI * (k / (width - 1) - 0.5) / dx);
-					wy = (float) (2 * Math.PI * (j / (height - 1) - 0.5) / dx);
-					wz = (float) (2 * Math.PI * (i / (slices - 1) - 0.5) / dz);
-					
-					identityMat[i][j][2*k] = 1;
-					identityMat[i][j][2*k + 1] = 0;
-					
-					// L1 - L6 are the filters discussed in Arigovindan+ 2013 (supplementary information)
-					L1[i][j][2*k] = (float) (2 * Math.cos(wx) - 2);
-					L1[i][j][2*k + 1] = 0;
-					
-					L2[i][j][2*k] = (float) (2 * Math.cos(wy) - 2);
-					L2[i][j][2*k + 1] = 0;
-					
-					L3[i][j][2*k] = (float) (spacing_ratio * spacing_ratio * (2 * Math.cos(wz) - 2));
-					L3[i][j][2*k + 1] = 0;
-					
-					L4[i][j][2*k] = (float) (Math.sqrt(2) * (1 - Math.cos(wx) - Math.cos(wy) + Math.cos(wx + wy)));
-					L4[i][j][2*k + 1] = (float) (Math.sqrt(2) * (Math.sin(wx) + Math.sin(wy) - Math.sin(wx + wy)));
-					
-					L5[i][j][2*k] = (float) (Math.sqrt(2) * spacing_ratio * (1 - Math.cos(wy) - Math.cos(wz) + Math.cos(wy + wz)));
-					L5[i][j][2*k + 1] = (float) (Math.sqrt(2) * spacing_ratio * (Math.sin(wy) + Math.sin(wz) - Math.sin(wy + wz)));
-					
-					L6[i][j][2*k] = (float) (Math.sqrt(2) * spacing_ratio * (1 - Math.cos(wx) - Math.cos(wz) + Math.cos(wx + wz)));
-					L6[i][j][2*k + 1] = (float) (Math.sqrt(2) * spacing_ratio * (Math.sin(wx) + Math.sin(wz) - Math.sin(wx + wz)));
-				}
 		
-		// initialize the P matrix, P_I matrix, and guess according to the paper
-		// psfMat and imgMat are both out of Fourier space after these calls.
-		initializePmatFT();
+		// imgMat is out of Fourier space again after initializeGuess
 		initializeGuess();
+		initializeDataTerm();
 		
-		// get filters out of Fourier space
-		fft3D.complexInverse(L1, true);
-		fft3D.complexInverse(L2, true);
-		fft3D.complexInverse(L3, true);
-		fft3D.complexInverse(L4, true);
-		fft3D.complexInverse(L5, true);
-		fft3D.complexInverse(L6, true);
-
 		getEnergyMeasure(false);
 	}
 	
-	private void initializePmatFT() {
-		fft3D.complexForward(psfMat);
-		float[][][] auxiliaryMat = new float[slices][height][2*width];
-		for (int i = 0; i < slices; i++)
-			for (int j = 0; j < height; j++)
-				for (int k = 0; k < width; k++) {
-					auxiliaryMat[i][j][2*k] = 1;
-					auxiliaryMat[i][j][2*k + 1] = 0;
-				}
-		auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.matrixOperations(diu.complexConj(L1), L1, "multiply"), "add");
-		auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.matrixOperations(diu.complexConj(L2), L2, "multiply"), "add");
-		auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.matrixOperations(diu.complexConj(L3), L3, "multiply"), "add");
-		auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.matrixOperations(diu.complexConj(L4), L4, "multiply"), "add");
-		auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.matrixOperations(diu.complexConj(L5), L5, "multiply"), "add");
-		auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.matrixOperations(diu.complexConj(L6), L6, "multiply"), "add");
-		
-		pMatFT = diu.matrixOperations(diu.complexConj(psfMat), psfMat, "multiply");
-		pMatFT = diu.matrixOperations(pMatFT, diu.scaleMat(auxiliaryMat, smooth), "add");
-		
-		float[] sqrt;
-		for (int i = 0; i < slices; i++)
-			for (int j = 0; j < height; j++)
-				for (int k = 0; k < width; k++) {
-					sqrt = sqrtComplex(pMatFT[i][j][2*k], pMatFT[i][j][2*k + 1]);
-					piMatFT[i][j][2*k] = sqrt[0];
-					piMatFT[i][j][2*k + 1] = sqrt[1];
-				}
-		piMatFT = diu.matrixOperations(identityMat, piMatFT, "divide");
-		fft3D.complexInverse(piMatFT, true);
-	}
-	
 	// get g0
 	private void initializeGuess() {
 		for (int i = 0; i < frames; i++) {
-			fft3D.complexForward(imgMat[i]);
-			guess[i] = diu.matrixOperations(identityMat, pMatFT, "divide");
-			guess[i] = diu.matrixOperations(guess[i], diu.complexConj(psfMat), "multiply");
-			guess[i] = diu.matrixOperations(guess[i], imgMat[i], "multiply");
-			fft3D.complexInverse(guess[i], true);
-			fft3D.complexInverse(imgMat[i], true);
+			FFT_Cache.complexForward(imgMat[i]);
+			guess[i] = diu.matrixOperations(psf.guessFilterFT, imgMat[i], "multiply");
+			FFT_Cache.complexInverse(guess[i]);
+			FFT_Cache.complexInverse(imgMat[i]);
+		}
+	}
+	
+	// the PSF correlated with the image does not change between iterations, so compute it once. For real data
+	// this uses the half-spectrum transform
+	private void initializeDataTerm() {
+		dataTerm = new float[frames][][][];
+		for (int i = 0; i < frames; i++) {
+			if (realData)
+				dataTerm[i] = diu.toFFTform(diu.fourierConvolve(Real_Volume.fromArray(diu.getReMat(imgMat[i])), psf.psfMirroredRealFT)).toArray();
+			else
+				dataTerm[i] = diu.fourierConvolve(imgMat[i], psf.psfMirroredFT);
 		}
-		fft3D.complexInverse(psfMat, true);
 	}
 	
 	// get N' matrix if tilde is false or N'(~) matrix if tilde is true
@@ -200,67 +216,21 @@ public class Regularization_Utils {
 	private void get_wMat(boolean tilde) {
 		float[][][] auxiliaryMat;
 		for (int i = 0; i < frames; i++) {
-			if (tilde) {
-				wMatTilde[i] = diu.matrixOperations(guessTilde[i], guessTilde[i], "multiply");
-				
-				auxiliaryMat = diu.fourierConvolve(L1, guessTilde[i]);
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, auxiliaryMat, "multiply");
-				wMatTilde[i] = diu.matrixOperations(wMatTilde[i], auxiliaryMat, "add");
-				
-				auxiliaryMat = diu.fourierConvolve(L2, guessTilde[i]);
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, auxiliaryMat, "multiply");
-				wMatTilde[i] = diu.matrixOperations(wMatTilde[i], auxiliaryMat, "add");
-				
-				auxiliaryMat = diu.fourierConvolve(L3, guessTilde[i]);
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, auxiliaryMat, "multiply");
-				wMatTilde[i] = diu.matrixOperations(wMatTilde[i], auxiliaryMat, "add");
-				
-				auxiliaryMat = diu.fourierConvolve(L4, guessTilde[i]);
+			float[][][] guessMat = tilde ? guessTilde[i] : guess[i];
+			float[][][] w = diu.matrixOperations(guessMat, guessMat, "multiply");
+			for (float[][] taps : filters) {
+				auxiliaryMat = applyFilter(taps, guessMat, false, false);
 				auxiliaryMat = diu.matrixOperations(auxiliaryMat, auxiliaryMat, "multiply");
-				wMatTilde[i] = diu.matrixOperations(wMatTilde[i], auxiliaryMat, "add");
-				
-				auxiliaryMat = diu.fourierConvolve(L5, guessTilde[i]);
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, auxiliaryMat, "multiply");
-				wMatTilde[i] = diu.matrixOperations(wMatTilde[i], auxiliaryMat, "add");
-				
-				auxiliaryMat = diu.fourierConvolve(L6, guessTilde[i]);
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, auxiliaryMat, "multiply");
-				wMatTilde[i] = diu.matrixOperations(wMatTilde[i], auxiliaryMat, "add");
-				
-				wMatTilde[i] = diu.incrementComplex(wMatTilde[i], nonlinearity);
-				wMatTilde[i] = diu.matrixOperations(identityMat, wMatTilde[i], "divide");
+				w = diu.matrixOperations(w, auxiliaryMat, "add");
 			}
-			else {
-				wMat[i] = diu.matrixOperations(guess[i], guess[i], "multiply");
-			
-				auxiliaryMat = diu.fourierConvolve(L1, guess[i]);
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, auxiliaryMat, "multiply");
-				wMat[i] = diu.matrixOperations(wMat[i], auxiliaryMat, "add");
 			
-				auxiliaryMat = diu.fourierConvolve(L2, guess[i]);
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, auxiliaryMat, "multiply");
-				wMat[i] = diu.matrixOperations(wMat[i], auxiliaryMat, "add");
-			
-				auxiliaryMat = diu.fourierConvolve(L3, guess[i]);
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, auxiliaryMat, "multiply");
-				wMat[i] = diu.matrixOperations(wMat[i], auxiliaryMat, "add");
-			
-				auxiliaryMat = diu.fourierConvolve(L4, guess[i]);
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, auxiliaryMat, "multiply");
-				wMat[i] = diu.matrixOperations(wMat[i], auxiliaryMat, "add");
-			
-				auxiliaryMat = diu.fourierConvolve(L5, guess[i]);
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, auxiliaryMat, "multiply");
-				wMat[i] = diu.matrixOperations(wMat[i], auxiliaryMat, "add");
-			
-				auxiliaryMat = diu.fourierConvolve(L6, guess[i]);
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, auxiliaryMat, "multiply");
-				wMat[i] = diu.matrixOperations(wMat[i], auxiliaryMat, "add");
-			
-				wMat[i] = diu.incrementComplex(wMat[i], nonlinearity);
-				wMat[i] = diu.matrixOperations(identityMat, wMat[i], "divide");
-			}
-		}	
+			w = diu.incrementComplex(w, nonlinearity);
+			w = diu.matrixOperations(identityMat, w, "divide");
+			if (tilde)
+				wMatTilde[i] = w;
+			else
+				wMat[i] = w;
+		}
 	}
 	
 	// get e if tilde is false or e(~) if tilde is true
@@ -288,49 +258,35 @@ public class Regularization_Utils {
 		float[][][] auxiliaryMat;
 		
 		for (int i = 0; i < frames; i++) {
-			if (tilde == false) {
-				auxiliaryMat = diu.fourierConvolve(negativeIndex(L1), diu.matrixOperations(wMat[i], diu.fourierConvolve(L1, guess[i]), "multiply"));
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L2), diu.matrixOperations(wMat[i], diu.fourierConvolve(L2, guess[i]), "multiply")), "add");
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L3), diu.matrixOperations(wMat[i], diu.fourierConvolve(L3, guess[i]), "multiply")), "add");
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L4), diu.matrixOperations(wMat[i], diu.fourierConvolve(L4, guess[i]), "multiply")), "add");
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L5), diu.matrixOperations(wMat[i], diu.fourierConvolve(L5, guess[i]), "multiply")), "add");
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L6), diu.matrixOperations(wMat[i], diu.fourierConvolve(L6, guess[i]), "multiply")), "add");
+			float[][][] guessMat = tilde ? guessTilde[i] : guess[i];
+			float[][][] w = tilde ? wMatTilde[i] : wMat[i];
+			float[][][] n = tilde ? nPrimeTilde[i] : nPrime[i];
 			
-				energyMeasure[i] = diu.fourierConvolve(negativeIndex(psfMat), imgMat[i]);
-				energyMeasure[i] = diu.matrixOperations(energyMeasure[i], diu.fourierConvolve(negativeIndex(psfMat), diu.fourierConvolve(psfMat, guess[i])), "subtract");
-				energyMeasure[i] = diu.matrixOperations(energyMeasure[i], diu.scaleMat(diu.matrixOperations(nPrime[i], guess[i], "multiply"), 100*smooth), "subtract");
-				energyMeasure[i] = diu.matrixOperations(energyMeasure[i], diu.scaleMat(diu.matrixOperations(wMat[i], guess[i], "multiply"), smooth), "subtract");
-				energyMeasure[i] = diu.matrixOperations(energyMeasure[i], diu.scaleMat(auxiliaryMat, smooth), "subtract");
-			}
-			else {
-				auxiliaryMat = diu.fourierConvolve(negativeIndex(L1), diu.matrixOperations(wMatTilde[i], diu.fourierConvolve(L1, guessTilde[i]), "multiply"));
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L2), diu.matrixOperations(wMatTilde[i], diu.fourierConvolve(L2, guessTilde[i]), "multiply")), "add");
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L3), diu.matrixOperations(wMatTilde[i], diu.fourierConvolve(L3, guessTilde[i]), "multiply")), "add");
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L4), diu.matrixOperations(wMatTilde[i], diu.fourierConvolve(L4, guessTilde[i]), "multiply")), "add");
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L5), diu.matrixOperations(wMatTilde[i], diu.fourierConvolve(L5, guessTilde[i]), "multiply")), "add");
-				auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(negativeIndex(L6), diu.matrixOperations(wMatTilde[i], diu.fourierConvolve(L6, guessTilde[i]), "multiply")), "add");
+			// the sum of L^T (W L g) over the filters
+			auxiliaryMat = new float[slices][height][2*width];
+			for (float[][] taps : filters)
+				auxiliaryMat = diu.matrixOperations(auxiliaryMat, applyFilter(taps, diu.matrixOperations(w, applyFilter(taps, guessMat, false, false), "multiply"), true, false), "add");
 			
-				energyMeasureTilde[i] = diu.fourierConvolve(negativeIndex(psfMat), imgMat[i]);
-				energyMeasureTilde[i] = diu.matrixOperations(energyMeasureTilde[i], diu.fourierConvolve(negativeIndex(psfMat), diu.fourierConvolve(psfMat, guessTilde[i])), "subtract");
-				energyMeasureTilde[i] = diu.matrixOperations(energyMeasureTilde[i], diu.scaleMat(diu.matrixOperations(nPrimeTilde[i], guessTilde[i], "multiply"), 100*smooth), "subtract");
-				energyMeasureTilde[i] = diu.matrixOperations(energyMeasureTilde[i], diu.scaleMat(diu.matrixOperations(wMatTilde[i], guessTilde[i], "multiply"), smooth), "subtract");
-				energyMeasureTilde[i] = diu.matrixOperations(energyMeasureTilde[i], diu.scaleMat(auxiliaryMat, smooth), "subtract");
-			}
+			float[][][] energy = diu.matrixOperations(dataTerm[i], diu.fourierConvolve(diu.fourierConvolve(guessMat, psf.psfFT), psf.psfMirroredFT), "subtract");
+			energy = diu.matrixOperations(energy, diu.scaleMat(diu.matrixOperations(n, guessMat, "multiply"), 100*smooth), "subtract");
+			energy = diu.matrixOperations(energy, diu.scaleMat(diu.matrixOperations(w, guessMat, "multiply"), smooth), "subtract");
+			energy = diu.matrixOperations(energy, diu.scaleMat(auxiliaryMat, smooth), "subtract");
+			if (tilde)
+				energyMeasureTilde[i] = energy;
+			else
+				energyMeasure[i] = energy;
 		}
 		
 		get_error(tilde);
 	}
 	
-	// get D matrix
+	// get D matrix. The filter terms are the diagonal of L^T W L, the squared taps applied to W
 	public void get_dMat() {
 		float[][][] auxiliaryMat;
 		for (int i = 0; i < frames; i++) {
-			auxiliaryMat = diu.fourierConvolve(diu.matrixOperations(negativeIndex(L1), negativeIndex(L1), "multiply"), wMat[i]);
-			auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(diu.matrixOperations(negativeIndex(L2), negativeIndex(L2), "multiply"), wMat[i]), "add");
-			auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(diu.matrixOperations(negativeIndex(L3), negativeIndex(L3), "multiply"), wMat[i]), "add");
-			auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(diu.matrixOperations(negativeIndex(L4), negativeIndex(L4), "multiply"), wMat[i]), "add");
-			auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(diu.matrixOperations(negativeIndex(L5), negativeIndex(L5), "multiply"), wMat[i]), "add");
-			auxiliaryMat = diu.matrixOperations(auxiliaryMat, diu.fourierConvolve(diu.matrixOperations(negativeIndex(L6), negativeIndex(L6), "multiply"), wMat[i]), "add");
+			auxiliaryMat = new float[slices][height][2*width];
+			for (float[][] taps : filters)
+				auxiliaryMat = diu.matrixOperations(auxiliaryMat, applyFilter(taps, wMat[i], true, true), "add");
 			
 			dMat[i] = diu.scaleMat(nPrime[i], 100*smooth);
 			dMat[i] = diu.matrixOperations(dMat[i], diu.scaleMat(wMat[i], smooth), "add");
@@ -363,12 +319,19 @@ public class Regularization_Utils {
 			return false;				
 	}
 	
-	// update guess accordingly when guess(~) is better
+	// update guess accordingly when guess(~) is better. change is set to |guess(~) - guess| / |guess(~)|
 	public void update() {
+		double changed = 0;
+		double total = 0;
 		for (int i = 0; i < frames; i++)
 			for (int j = 0; j < slices; j++)
 				for (int k = 0; k < height; k++)
 					for (int l = 0; l < width; l++) {
+						float re = guessTilde[i][j][k][2*l] - guess[i][j][k][2*l];
+						float im = guessTilde[i][j][k][2*l + 1] - guess[i][j][k][2*l + 1];
+						changed += re*re + im*im;
+						total += guessTilde[i][j][k][2*l] * guessTilde[i][j][k][2*l] + guessTilde[i][j][k][2*l + 1] * guessTilde[i][j][k][2*l + 1];
+						
 						guess[i][j][k][2*l] = guessTilde[i][j][k][2*l];
 						guess[i][j][k][2*l + 1] = guessTilde[i][j][k][2*l + 1];
 						
@@ -380,10 +343,22 @@ public class Regularization_Utils {
 						
 						error = errorTilde;
 					}
+		change = total > 0 ? (float) Math.sqrt(changed / total) : 0;
+	}
+	
+	// start frame i from start (e.g. the previous frame's result) instead of g0, if it has the same shape. start is left unchanged
+	public void warmStart(int i, float[][][] start) {
+		if (start == null || start.length != slices || start[0].length != height || start[0][0].length != 2*width)
+			return;
+		
+		for (int j = 0; j < slices; j++)
+			for (int k = 0; k < height; k++)
+				System.arraycopy(start[j][k], 0, guess[i][j][k], 0, 2*width);
+		getEnergyMeasure(false);
 	}
 	
 	// take square root of complex number, return as {re, im}
-	private float[] sqrtComplex(float re, float im) {
+	private static float[] sqrtComplex(float re, float im) {
 		float a = re;
 		float b = im;
 		float theta = (float) Math.atan2(b, a);
@@ -394,8 +369,44 @@ public class Regularization_Utils {
 		return ret;
 	}
 	
+	// apply one of the filters to a complex matrix as a periodic stencil, the same as the circular convolution with it but
+	// in one pass: (L g)(x) = sum of weight * g(x - offset), or the adjoint L^T g (x) = sum of weight * g(x + offset).
+	// With squared the weights are squared, so the adjoint gives the diagonal of L^T W L from W. Both parts are
+	// filtered, slices in parallel. Offsets are at most 1, so wrapping around is a single comparison
+	private float[][][] applyFilter(float[][] taps, float[][][] mat, boolean adjoint, boolean squared) {
+		float[][][] ret = new float[slices][height][2*width];
+		int sign = adjoint ? 1 : -1;
+		IntStream.range(0, slices).parallel().forEach(i -> {
+			for (float[] tap : taps) {
+				int ds = sign * (int) tap[0];
+				int dr = sign * (int) tap[1];
+				int dc = sign * (int) tap[2];
+				float weight = squared ? tap[3] * tap[3] : tap[3];
+				float[][] sourceSlice = mat[Math.floorMod(i + ds, slices)];
+				for (int j = 0; j < height; j++) {
+					float[] source = sourceSlice[Math.floorMod(j + dr, height)];
+					float[] row = ret[i][j];
+					for (int k = 0; k < width; k++) {
+						int l = k + dc;
+						if (l < 0)
+							l += width;
+						else if (l >= width)
+							l -= width;
+						row[2*k] += weight * source[2*l];
+						row[2*k + 1] += weight * source[2*l + 1];
+					}
+				}
+			}
+		});
+		
+		return ret;
+	}
+	
 	// returns a complex matrix with all axes mirrored
-	private float[][][] negativeIndex(float[][][] mat) {
+	private static float[][][] negativeIndex(float[][][] mat) {
+		int slices = mat.length;
+		int height = mat[0].length;
+		int width = mat[0][0].length / 2;
 		float[][][] retMat = new float[slices][height][2*width];
 		for (int i = 0; i < slices; i++)
 			for (int j = 0; j < height; j++)
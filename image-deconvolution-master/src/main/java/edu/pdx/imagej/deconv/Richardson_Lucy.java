@@ -0,0 +1,261 @@
+package edu.pdx.imagej.deconv;
+
+import java.util.stream.IntStream;
+
+// Richardson-Lucy deconvolution of real, non-negative data (amplitude stacks):
+//     x <- x * H^T(g / Hx)
+// with H the convolution with the PSF and H^T its adjoint (the correlation). Every iteration is two convolutions, so four
+// transforms, all with the OTF from preparePSF and buffers that are reused from iteration to iteration.
+//
+// With acceleration, every step starts from a point extrapolated along the last change of the estimate (Biggs and
+// Andrews, "Acceleration of iterative image restoration algorithms", 1997): y = x + alpha (x - x_previous), where alpha
+// compares the last two changes the Richardson-Lucy step made, and the step is taken from y instead of x. That usually
+// reaches a given error in a fraction of the iterations.
+//
+// With a TV weight lambda, the step is damped by total variation (Dey et al., 2006): x <- x * H^T(g / Hx) / (1 - lambda
+// div(grad x / |grad x|)), which keeps noise from being amplified as the iterations go on. The gradient is normalized,
+// so the weight does not depend on the data's scale; around 0.001 to 0.01 is typical.
+//
+// One engine works on one frame at a time: start, then step once per iteration.
+public class Richardson_Lucy {
+	
+	// the TV denominator is kept above this so one step never amplifies a voxel by more than 1/MIN_TV_DENOMINATOR
+	private static final float MIN_TV_DENOMINATOR = 0.1f;
+	
+	private final Prepared_PSF psf;
+	private final boolean accelerate;
+	private final float tv;
+	private final Complex_Kernels kernels = Complex_Kernels.create();
+	private Real_FFT_3D fft;
+	private Complex_Volume spectrum;
+	private Real_Volume image;
+	private Real_Volume estimate;
+	private Real_Volume previous;
+	private Real_Volume start;
+	private Real_Volume change;
+	private Real_Volume previousChange;
+	private Real_Volume blurred;
+	private Real_Volume work;
+	private float tvScale;
+	private double relativeChange;
+	private int iteration;
+	private long fftCount;
+	
+	// psf must come from preparePSF
+	public Richardson_Lucy(Prepared_PSF i_psf, boolean i_accelerate, float i_tv) {
+		psf = i_psf;
+		accelerate = i_accelerate;
+		tv = i_tv;
+	}
+	
+	// Richardson-Lucy needs a PSF that sums to 1 and an exact (circular) convolution and correlation. A centered PSF
+	// whose OTF can fold in the formatIFFT shift already gives one; otherwise the PSF's center is moved to the origin
+	// before it is transformed, so no formatting is needed either way. psf is left unchanged
+	public static Prepared_PSF preparePSF(Real_Volume psf) {
+		Real_Volume normalized = psf.copy();
+		double total = 0;
+		for (float value : normalized.data)
+			total += value;
+		if (total != 0)
+			for (int i = 0; i < normalized.data.length; i++)
+				normalized.data[i] /= total;
+		
+		Prepared_PSF prepared = new Prepared_PSF(normalized);
+		return prepared.isShifted() ? prepared : new Prepared_PSF(centerAtOrigin(normalized));
+	}
+	
+	// start on a new frame, from the frame itself
+	public void start(Real_Volume i_image) {
+		start(i_image, null);
+	}
+	
+	// start on a new frame from initial, e.g. the previous frame's estimate, or from the frame itself if initial is null.
+	// initial is left unchanged
+	public void start(Real_Volume i_image, Real_Volume initial) {
+		if (!psf.matches(i_image))
+			throw new IllegalArgumentException("The PSF was not prepared for volumes of this size.");
+		
+		// the buffers have the PSF's shape, so they are allocated once per engine
+		image = i_image;
+		if (fft == null) {
+			fft = FFT_Cache.real(image.slices, image.height, image.width);
+			spectrum = fft.newSpectrum();
+			previous = newVolume();
+			blurred = newVolume();
+			work = newVolume();
+			if (accelerate) {
+				start = newVolume();
+				change = newVolume();
+				previousChange = newVolume();
+			}
+		}
+		
+		estimate = newVolume();
+		Real_Volume from = initial == null ? image : initial;
+		for (int i = 0; i < estimate.data.length; i++)
+			estimate.data[i] = Math.max(from.data[i], 0);
+		
+		// differences well below the data's scale count as flat for TV
+		float max = 0;
+		for (float value : estimate.data)
+			max = Math.max(max, value);
+		tvScale = max > 0 ? 1e-4f * max : 1e-4f;
+		
+		iteration = 0;
+	}
+	
+	// one iteration
+	public void step() {
+		Real_Volume y = accelerate ? extrapolate() : estimate;
+		
+		// blurred = Hy, then work = H^T(g / Hy)
+		convolve(y, blurred, false);
+		for (int i = 0; i < work.data.length; i++)
+			work.data[i] = blurred.data[i] > 0 ? Math.max(image.data[i], 0) / blurred.data[i] : 0;
+		convolve(work, work, true);
+		
+		// the new estimate goes into the buffer of the previous one, which is not needed anymore
+		Real_Volume next = previous;
+		for (int i = 0; i < next.data.length; i++)
+			next.data[i] = Math.max(y.data[i] * work.data[i], 0);
+		if (tv > 0)
+			damp(y, next);
+		
+		// the change of the estimate for stopping, and the change the step made for extrapolating the next one
+		if (accelerate) {
+			Real_Volume temp = previousChange;
+			previousChange = change;
+			change = temp;
+		}
+		double changed = 0;
+		double total = 0;
+		for (int i = 0; i < next.data.length; i++) {
+			double d = next.data[i] - estimate.data[i];
+			changed += d * d;
+			total += (double) next.data[i] * next.data[i];
+			if (accelerate)
+				change.data[i] = next.data[i] - y.data[i];
+		}
+		relativeChange = total > 0 ? Math.sqrt(changed / total) : 0;
+		
+		previous = estimate;
+		estimate = next;
+		iteration++;
+	}
+	
+	// the current estimate. Its buffer is reused two steps later, but the estimate a frame ends with is left alone
+	// once the next frame starts
+	public Real_Volume getEstimate() {
+		return estimate;
+	}
+	
+	// |x - x_previous| / |x| of the last step
+	public double getRelativeChange() {
+		return relativeChange;
+	}
+	
+	// the blurred point the last step started from, Hy. Overwritten by the next step
+	public Real_Volume getBlurred() {
+		return blurred;
+	}
+	
+	// forward and inverse 3D transforms done so far, 4 per iteration
+	public long getFFTCount() {
+		return fftCount;
+	}
+	
+	// y = max(x + alpha (x - x_previous), 0) into start. alpha is the correlation of the last two changes, kept in [0, 1)
+	private Real_Volume extrapolate() {
+		if (iteration < 2)
+			return estimate;
+		
+		double product = 0;
+		double norm = 0;
+		for (int i = 0; i < change.data.length; i++) {
+			product += (double) change.data[i] * previousChange.data[i];
+			norm += (double) previousChange.data[i] * previousChange.data[i];
+		}
+		double alpha = norm > 0 ? Math.max(0, Math.min(product / norm, 0.999)) : 0;
+		if (alpha == 0)
+			return estimate;
+		
+		for (int i = 0; i < start.data.length; i++)
+			start.data[i] = (float) Math.max(estimate.data[i] + alpha * (estimate.data[i] - previous.data[i]), 0);
+		return start;
+	}
+	
+	// dest = src convolved with the PSF, or correlated with it when adjoint. src and dest may be the same volume
+	private void convolve(Real_Volume src, Real_Volume dest, boolean adjoint) {
+		fft.forward(src, spectrum);
+		if (adjoint)
+			kernels.apply(Complex_Kernels.Operation.CONJ_MULTIPLY, psf.getOTF(), spectrum, spectrum);
+		else
+			kernels.apply(Complex_Kernels.Operation.MULTIPLY, spectrum, psf.getOTF(), spectrum);
+		fft.inverse(spectrum, dest);
+		fftCount += 2;
+	}
+	
+	// divide the step's result by 1 - tv div(grad y / |grad y|). Gradients are forward differences and the divergence
+	// backward ones, with nothing beyond the edges of the volume
+	private void damp(Real_Volume y, Real_Volume next) {
+		int slices = y.slices;
+		int height = y.height;
+		int width = y.width;
+		float[] data = y.data;
+		IntStream.range(0, slices).parallel().forEach(s -> {
+			float[] here = new float[3];
+			float[] before = new float[3];
+			for (int r = 0; r < height; r++)
+				for (int c = 0; c < width; c++) {
+					normalizedGradient(data, s, r, c, slices, height, width, here);
+					float divergence = here[0] + here[1] + here[2];
+					if (c > 0) {
+						normalizedGradient(data, s, r, c - 1, slices, height, width, before);
+						divergence -= before[0];
+					}
+					if (r > 0) {
+						normalizedGradient(data, s, r - 1, c, slices, height, width, before);
+						divergence -= before[1];
+					}
+					if (s > 0) {
+						normalizedGradient(data, s - 1, r, c, slices, height, width, before);
+						divergence -= before[2];
+					}
+					
+					int i = (s*height + r)*width + c;
+					next.data[i] /= Math.max(1 - tv * divergence, MIN_TV_DENOMINATOR);
+				}
+		});
+	}
+	
+	// grad y / |grad y| at one voxel into ret, {x, y, z}
+	private void normalizedGradient(float[] data, int s, int r, int c, int slices, int height, int width, float[] ret) {
+		int i = (s*height + r)*width + c;
+		float dx = c + 1 < width ? data[i + 1] - data[i] : 0;
+		float dy = r + 1 < height ? data[i + width] - data[i] : 0;
+		float dz = s + 1 < slices ? data[i + height*width] - data[i] : 0;
+		float norm = (float) Math.sqrt(dx*dx + dy*dy + dz*dz + tvScale*tvScale);
+		ret[0] = dx / norm;
+		ret[1] = dy / norm;
+		ret[2] = dz / norm;
+	}
+	
+	private Real_Volume newVolume() {
+		return new Real_Volume(image.slices, image.height, image.width);
+	}
+	
+	// circularly shift a centered volume so its center voxel (half of each dimension, rounded down) is at the origin
+	private static Real_Volume centerAtOrigin(Real_Volume vol) {
+		Real_Volume ret = new Real_Volume(vol.slices, vol.height, vol.width);
+		for (int s = 0; s < vol.slices; s++)
+			for (int r = 0; r < vol.height; r++)
+				for (int c = 0; c < vol.width; c++) {
+					int ds = (s - vol.slices/2 + vol.slices) % vol.slices;
+					int dr = (r - vol.height/2 + vol.height) % vol.height;
+					int dc = (c - vol.width/2 + vol.width) % vol.width;
+					ret.data[(ds*vol.height + dr)*vol.width + dc] = vol.data[(s*vol.height + r)*vol.width + c];
+				}
+		
+		return ret;
+	}
+}
\ No newline at end of file
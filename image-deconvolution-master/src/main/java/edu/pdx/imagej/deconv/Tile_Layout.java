@@ -0,0 +1,257 @@
+package edu.pdx.imagej.deconv;
+
+// splits the XY plane of a field into overlapping tiles that cover every slice. Tiles are deconvolved on their own and
+// blended back. The circular transform of a tile wraps its edges around, which corrupts a band of about the kernel's
+// radius along every edge, so that guard band is dropped (weight 0) and the weights only ramp up as sin^2 over the rest
+// of the overlap: tiles are cross-faded over overlap - 2 * guard pixels, where both are valid. The field is treated as
+// periodic, like the whole-field transform treats it: tiles past the right or bottom edge wrap around to the other side,
+// and the tiles on either side of the field's edge are blended like any others. The weights are normalized by their sum,
+// so they always form a partition of unity.
+//
+// The guard band should be at least the radius of the PSF (see psfRadius), and the overlap at least twice the guard band.
+public class Tile_Layout {
+	
+	// share of the PSF's absolute sum that may lie outside psfRadius
+	public static final double PSF_TAIL = 1e-3;
+	
+	public final int width;
+	public final int height;
+	public final int tileWidth;
+	public final int tileHeight;
+	public final int overlap;
+	public final int guard;
+	
+	private final int[] xs;
+	private final int[] ys;
+	
+	public Tile_Layout(int i_width, int i_height, int i_tileWidth, int i_tileHeight, int i_overlap, int i_guard) {
+		width = i_width;
+		height = i_height;
+		tileWidth = Math.min(i_tileWidth, width);
+		tileHeight = Math.min(i_tileHeight, height);
+		overlap = i_overlap;
+		guard = i_guard;
+		if (guard < 0 || overlap < 2 * guard)
+			throw new IllegalArgumentException("The tile overlap of " + Integer.toString(overlap) + " must be at least twice the guard band of " + Integer.toString(guard) + ".");
+		if ((tileWidth < width && overlap >= tileWidth) || (tileHeight < height && overlap >= tileHeight))
+			throw new IllegalArgumentException("Tiles must be larger than their overlap.");
+		
+		xs = origins(width, tileWidth);
+		ys = origins(height, tileHeight);
+	}
+	
+	// the largest square tiles whose transform buffers fit in bytes when workers tiles are deconvolved at once. Each
+	// worker needs the tile, its half spectrum and its result, and the tile PSF's filter and power are shared.
+	// Sizes are rounded down to products of 2, 3 and 5, which transform fastest
+	public static Tile_Layout forBudget(int width, int height, int slices, int overlap, int guard, long bytes, int workers) {
+		long perVoxel = (long) slices * (16L * workers + 8);
+		double fits = Math.sqrt((double) bytes / perVoxel);
+		if (fits >= Math.max(width, height))
+			return new Tile_Layout(width, height, width, height, overlap, guard);
+		
+		int size = smoothSize((int) fits);
+		if (size <= 2 * overlap)
+			throw new IllegalArgumentException("A tile budget of " + Long.toString(bytes >> 20) + " MB is too small for an overlap of " + Integer.toString(overlap) + ".");
+		
+		return new Tile_Layout(width, height, size, size, overlap, guard);
+	}
+	
+	// radius in XY (half the side of a square around the center) that holds all but PSF_TAIL of a centered PSF's
+	// absolute sum, over every slice
+	public static int psfRadius(Real_Volume psf) {
+		int cx = psf.width / 2;
+		int cy = psf.height / 2;
+		double[] rings = new double[Math.max(psf.width, psf.height)];
+		double total = 0;
+		for (int s = 0; s < psf.slices; s++)
+			for (int r = 0; r < psf.height; r++)
+				for (int c = 0; c < psf.width; c++) {
+					double value = Math.abs(psf.data[(s*psf.height + r)*psf.width + c]);
+					rings[Math.max(Math.abs(r - cy), Math.abs(c - cx))] += value;
+					total += value;
+				}
+		
+		double inside = 0;
+		for (int d = 0; d < rings.length; d++) {
+			inside += rings[d];
+			if (inside >= (1 - PSF_TAIL) * total)
+				return d;
+		}
+		
+		return rings.length - 1;
+	}
+	
+	public int count() {
+		return xs.length * ys.length;
+	}
+	
+	// top left corner of tile t
+	public int x(int t) {
+		return xs[t % xs.length];
+	}
+	
+	public int y(int t) {
+		return ys[t / xs.length];
+	}
+	
+	// copy tile t out of a field volume
+	public Real_Volume extract(Real_Volume field, int t) {
+		Real_Volume tile = new Real_Volume(field.slices, tileHeight, tileWidth);
+		int[] rows = indices(y(t), tileHeight, height);
+		int[] cols = indices(x(t), tileWidth, width);
+		for (int s = 0; s < field.slices; s++)
+			for (int r = 0; r < tileHeight; r++) {
+				int src = (s*height + rows[r])*width;
+				int dest = (s*tileHeight + r)*tileWidth;
+				for (int c = 0; c < tileWidth; c++)
+					tile.data[dest + c] = field.data[src + cols[c]];
+			}
+		
+		return tile;
+	}
+	
+	// add the weighted tile t into sum and its weights into weightSum, which holds one weight per XY position
+	public void accumulate(Real_Volume tile, int t, Real_Volume sum, float[] weightSum) {
+		float[] wx = weights(tileWidth, width);
+		float[] wy = weights(tileHeight, height);
+		int[] rows = indices(y(t), tileHeight, height);
+		int[] cols = indices(x(t), tileWidth, width);
+		for (int r = 0; r < tileHeight; r++)
+			for (int c = 0; c < tileWidth; c++)
+				weightSum[rows[r]*width + cols[c]] += wy[r] * wx[c];
+		
+		for (int s = 0; s < tile.slices; s++)
+			for (int r = 0; r < tileHeight; r++) {
+				int src = (s*tileHeight + r)*tileWidth;
+				int dest = (s*height + rows[r])*width;
+				for (int c = 0; c < tileWidth; c++)
+					sum.data[dest + cols[c]] += wy[r] * wx[c] * tile.data[src + c];
+			}
+	}
+	
+	// divide the accumulated tiles by their weights
+	public void normalize(Real_Volume sum, float[] weightSum) {
+		for (int s = 0; s < sum.slices; s++)
+			for (int i = 0; i < weightSum.length; i++)
+				sum.data[s*weightSum.length + i] /= weightSum[i];
+	}
+	
+	// crop a centered PSF to the tile size, keeping its center at the tile's center. The crop is rescaled to the sum of
+	// the whole PSF, so tiles are filtered with the same gain as the whole field
+	public Real_Volume cropPSF(Real_Volume psf) {
+		Real_Volume ret = new Real_Volume(psf.slices, tileHeight, tileWidth);
+		int x = psf.width/2 - tileWidth/2;
+		int y = psf.height/2 - tileHeight/2;
+		for (int s = 0; s < psf.slices; s++)
+			for (int r = 0; r < tileHeight; r++)
+				System.arraycopy(psf.data, (s*psf.height + y + r)*psf.width + x, ret.data, (s*tileHeight + r)*tileWidth, tileWidth);
+		
+		double total = 0;
+		double kept = 0;
+		for (float value : psf.data)
+			total += value;
+		for (float value : ret.data)
+			kept += value;
+		if (kept != 0 && kept != total)
+			for (int i = 0; i < ret.data.length; i++)
+				ret.data[i] = (float) (ret.data[i] * total / kept);
+		
+		return ret;
+	}
+	
+	// sum of the squares of tile t weighted by its share of the blend at each position, so that summed over the tiles
+	// every position of the field counts once. weightSum is the sum of the weights of every tile (see weightSum)
+	public double weightedSquares(Real_Volume tile, int t, float[] weightSum) {
+		float[] wx = weights(tileWidth, width);
+		float[] wy = weights(tileHeight, height);
+		int[] rows = indices(y(t), tileHeight, height);
+		int[] cols = indices(x(t), tileWidth, width);
+		double ret = 0;
+		for (int s = 0; s < tile.slices; s++)
+			for (int r = 0; r < tileHeight; r++)
+				for (int c = 0; c < tileWidth; c++) {
+					float w = wy[r] * wx[c];
+					if (w == 0)
+						continue;
+					double value = tile.data[(s*tileHeight + r)*tileWidth + c];
+					ret += w / weightSum[rows[r]*width + cols[c]] * value * value;
+				}
+		
+		return ret;
+	}
+	
+	// the sum of the blend weights of every tile at each XY position, what accumulate adds up into weightSum
+	public float[] weightSum() {
+		float[] wx = weights(tileWidth, width);
+		float[] wy = weights(tileHeight, height);
+		float[] ret = new float[width * height];
+		for (int t = 0; t < count(); t++) {
+			int[] rows = indices(y(t), tileHeight, height);
+			int[] cols = indices(x(t), tileWidth, width);
+			for (int r = 0; r < tileHeight; r++)
+				for (int c = 0; c < tileWidth; c++)
+					ret[rows[r]*width + cols[c]] += wy[r] * wx[c];
+		}
+		
+		return ret;
+	}
+	
+	// origins of tiles of the given size along a side. They are spread evenly around the (periodic) side, no more than
+	// tile - overlap apart
+	private int[] origins(int side, int tile) {
+		if (tile >= side)
+			return new int[] {0};
+		
+		int count = (int) Math.ceil((double) side / (tile - overlap));
+		int[] ret = new int[count];
+		for (int i = 0; i < count; i++)
+			ret[i] = (int) ((long) i * side / count);
+		
+		return ret;
+	}
+	
+	// field positions covered by a tile along one side, wrapping around the edge
+	private int[] indices(int origin, int tile, int side) {
+		int[] ret = new int[tile];
+		for (int i = 0; i < tile; i++)
+			ret[i] = (origin + i) % side;
+		
+		return ret;
+	}
+	
+	// blending weights along one side of a tile, sides that are not split into tiles are not blended. The guard band at
+	// each edge gets no weight and the weights ramp up over the rest of the overlap
+	private float[] weights(int tile, int side) {
+		float[] ret = new float[tile];
+		for (int i = 0; i < tile; i++)
+			ret[i] = 1;
+		if (tile >= side)
+			return ret;
+		
+		int ramp = overlap - 2 * guard;
+		for (int d = 0; d < overlap - guard; d++) {
+			float weight = d < guard ? 0 : (float) Math.pow(Math.sin(Math.PI / 2 * (d - guard + 0.5) / ramp), 2);
+			ret[d] *= weight;
+			ret[tile - 1 - d] *= weight;
+		}
+		
+		return ret;
+	}
+	
+	// largest even number at most n (or n itself if it is 1) with no prime factors above 5
+	private static int smoothSize(int n) {
+		if (n <= 2)
+			return Math.max(n, 1);
+		
+		for (int m = n - n % 2; m > 2; m -= 2) {
+			int rest = m;
+			for (int p : new int[] {2, 3, 5})
+				while (rest % p == 0)
+					rest /= p;
+			if (rest == 1)
+				return m;
+		}
+		
+		return 2;
+	}
+}
\ No newline at end of file
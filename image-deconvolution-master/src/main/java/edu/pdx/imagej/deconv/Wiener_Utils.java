@@ -1,24 +1,40 @@
 package edu.pdx.imagej.deconv;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.jtransforms.fft.FloatFFT_3D;
 
 import ij.IJ;
+import ij.ImagePlus;
+import pl.edu.icm.jlargearrays.ConcurrencyUtils;
 
 public class Wiener_Utils {
 	
 	private Deconvolve_Image_Utils diu = new Deconvolve_Image_Utils();
-	private FloatFFT_3D fft3D;
+	private Complex_Kernels kernels = Complex_Kernels.create();
+	private Real_FFT_3D realFFT3D;
 	private float beta;
 	private int width;
 	private int height;
 	private int slices;
 	private int frames;
-	private float[][][] psfComplex;
+	private int parallelism = 1;
+	private Scratch scratch = new Scratch();
+	private float[] frameBetas;
+	private Tile_Layout tiles;
+	private Wiener_Utils tileUtils;
 	private boolean get_intensity;
 	
-	public float[][][][] imgComplex;
-	public float[][][][] imgPhase;
+	public Real_Volume[] imgComplex;
+	public Real_Volume[] imgPhase;
 	public float scale = 1;
+	// relative residual of the last deconvolve call that asked for it, see accumulateResidual
 	public float error;
 	
 	// initialize object
@@ -29,102 +45,429 @@ public class Wiener_Utils {
 		frames = i_frames;
 		beta = i_beta;
 		get_intensity = intensity;
-		fft3D = new FloatFFT_3D((long)slices, (long)height, (long)width);
-		imgComplex = new float[frames][slices][height][width];
+		imgComplex = new Real_Volume[frames];
 	}
 	
-	// assumes imgMat and psfMat are not in FFT form. This method deconvolves real data
-	public void deconvolve(float[][][][] imgMat, float[][][] psfMat, boolean getError) {
-		// put image into FFT form and transform
-		for (int i = 0; i < frames; i++) {
-			imgComplex[i] = diu.toFFTform(imgMat[i]);
-			if (get_intensity)
-				imgComplex[i] = diu.matrixOperations(imgComplex[i], imgComplex[i], "multiply");
-			fft3D.complexForward(imgComplex[i]);
+	// number of frames deconvolved at the same time. Each one needs its own transform buffers
+	public void setParallelism(int i_parallelism) {
+		parallelism = Math.max(1, i_parallelism);
+	}
+	
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	// a beta for each frame instead of the one given to the constructor, e.g. from per-frame SNR estimates. Null goes
+	// back to the single beta
+	public void setFrameBetas(float[] betas) {
+		frameBetas = betas;
+	}
+	
+	// deconvolve real data tile by tile (see Tile_Layout), so only tile-sized transforms are ever allocated. Tiles of a
+	// frame run in parallel and frames one after another. Must be set before preparePSF, complex data is not tiled
+	public void setTiling(Tile_Layout layout) {
+		tiles = layout;
+		tileUtils = null;
+		if (tiles != null && (tiles.tileWidth < width || tiles.tileHeight < height)) {
+			tileUtils = new Wiener_Utils(tiles.tileWidth, tiles.tileHeight, slices, 1, beta, get_intensity);
+			tileUtils.kernels = kernels;
 		}
-			
-		// do the same with PSF
-		psfComplex = diu.scaleMat(psfMat, scale);
-		psfComplex = diu.toFFTform(psfComplex);
-		if (get_intensity)
-			psfComplex = diu.matrixOperations(psfComplex, psfComplex, "multiply");
-		fft3D.complexForward(psfComplex);	
-		float[][][] psfConj = diu.complexConj(psfComplex);
-		
-		for (int i = 0; i < frames; i++) {
-			// perform deconvolution operations
-			imgComplex[i] = diu.matrixOperations(psfConj, imgComplex[i], "multiply");	
-			imgComplex[i] = diu.matrixOperations(imgComplex[i], diu.incrementComplex(diu.matrixOperations(psfComplex, psfConj, "multiply"), beta), "divide");
-			fft3D.complexInverse(imgComplex[i], true);
-			
-			// put complex matrices back into real matrices and format image
-			imgComplex[i] = diu.getAmplitudeMat(imgComplex[i]);
-			imgComplex[i] = diu.formatIFFT(imgComplex[i]);
-			diu.linearShift(imgComplex[i], 0, 1);
-			IJ.showProgress(i+1, frames);
+	}
+	
+	// transform a real PSF (not in FFT form) once so it can be used for any number of deconvolve calls
+	public Prepared_PSF preparePSF(Real_Volume psfMat) {
+		// the tiles are filtered with the PSF cropped to their size
+		if (tileUtils != null) {
+			tileUtils.scale = scale;
+			return tileUtils.preparePSF(tiles.cropPSF(psfMat));
 		}
 		
-		// return PSF matrix to original state
-		fft3D.complexInverse(psfComplex, true);
-		psfComplex = diu.getAmplitudeMat(psfComplex);
+		Real_Volume psfScaled = diu.scaleMat(psfMat, scale);
+		if (get_intensity)
+			square(psfScaled.data, psfScaled.data);
 		
-		if (getError)
-			error = (float) diu.getError(diu.toFFTform(imgComplex), diu.toFFTform(imgMat), psfMat);
+		return new Prepared_PSF(psfScaled);
 	}
 	
-	// treats deconvolution with complex numbers
-	public void deconvolve(float[][][][] imgAmpMat, float[][][][] imgPhaseMat, float[][][] psfAmpMat, float[][][] psfPhaseMat, boolean getError, String style) {
-		imgPhase = new float[frames][slices][height][width];
-		
-		// construct complex matrices based on form of input data
-		for (int i = 0; i < frames; i++) {
-			if (style == "Polar")
-				imgComplex[i] = diu.toFFTform(imgAmpMat[i], imgPhaseMat[i]);
-			else
-				imgComplex[i] = diu.toFFTformRect(imgAmpMat[i], imgPhaseMat[i]);
-			
-			if (get_intensity)
-				imgComplex[i] = diu.matrixOperations(imgComplex[i], diu.complexConj(imgComplex[i]), "multiply");
-			
-			fft3D.complexForward(imgComplex[i]);
-		}
-		
-		// do same for PSF
+	// same as above for complex PSFs, style is "Polar" or "Rectangular"
+	public Prepared_PSF preparePSF(Real_Volume psfAmpMat, Real_Volume psfPhaseMat, String style) {
+		Complex_Volume psfComplex;
 		if (style == "Polar")
 			psfComplex = diu.toFFTform(psfAmpMat, psfPhaseMat);
 		else
 			psfComplex = diu.toFFTformRect(psfAmpMat, psfPhaseMat);
 		
 		if (get_intensity)
-			psfComplex = diu.matrixOperations(psfComplex, diu.complexConj(psfComplex), "multiply");
+			kernels.apply(Complex_Kernels.Operation.ABS_SQUARED, psfComplex, null, psfComplex);
 		
-		fft3D.complexForward(psfComplex);	
-		float[][][] psfConj = diu.complexConj(psfComplex);
+		return new Prepared_PSF(psfComplex);
+	}
+	
+	// assumes imgMat and psfMat are not in FFT form. This method deconvolves real data
+	public void deconvolve(Real_Volume[] imgMat, Real_Volume psfMat, boolean getError) {
+		deconvolve(imgMat, preparePSF(psfMat), getError);
+	}
+	
+	// deconvolve real data with a PSF from preparePSF(Real_Volume). This works on the half spectrum of the real
+	// transform rather than zero-padding everything into complex volumes. getError sets error, see accumulateResidual
+	public void deconvolve(Real_Volume[] imgMat, Prepared_PSF psf, boolean getError) {
+		double[][] residuals = new double[frames][2];
+		forEachFrame((i, buffers) -> imgComplex[i] = deconvolveFrame(imgMat[i], psf, betaFor(i), buffers, getError ? residuals[i] : null));
 		
-		// same deconvolution procedure as above
-		for (int i = 0; i < frames; i++) {
-			imgComplex[i] = diu.matrixOperations(psfConj, imgComplex[i], "multiply");	
-			imgComplex[i] = diu.matrixOperations(imgComplex[i], diu.incrementComplex(diu.matrixOperations(psfComplex, psfConj, "multiply"), beta), "divide");
-			fft3D.complexInverse(imgComplex[i], true);
-			
-			// put complex matrices back into real matrices and format image
-			if (style == "Polar") {
-				imgPhase[i] = diu.getPhaseMat(imgComplex[i]);
-				imgComplex[i] = diu.getAmplitudeMat(imgComplex[i]);
+		if (getError)
+			error = combineResiduals(residuals);
+	}
+	
+	// same as above for hyperstacks that do not fit on the heap. Frames are read from image one at a time and the
+	// results are written to results instead of imgComplex
+	public void deconvolve(ImagePlus image, Prepared_PSF psf, boolean getError, Frame_Store results) {
+		double[][] residuals = new double[frames][2];
+		forEachFrame((i, buffers) -> results.put(i, deconvolveFrame(diu.getVolume(image, i), psf, betaFor(i), buffers, getError ? residuals[i] : null)));
+		
+		if (getError)
+			error = combineResiduals(residuals);
+	}
+	
+	// treats deconvolution with complex numbers
+	public void deconvolve(Real_Volume[] imgAmpMat, Real_Volume[] imgPhaseMat, Real_Volume psfAmpMat, Real_Volume psfPhaseMat, boolean getError, String style) {
+		deconvolve(imgAmpMat, imgPhaseMat, preparePSF(psfAmpMat, psfPhaseMat, style), getError, style);
+	}
+	
+	// complex deconvolution with a PSF from preparePSF(Real_Volume, Real_Volume, String)
+	public void deconvolve(Real_Volume[] imgAmpMat, Real_Volume[] imgPhaseMat, Prepared_PSF psf, boolean getError, String style) {
+		imgPhase = new Real_Volume[frames];
+		double[][] residuals = new double[frames][2];
+		forEachFrame((i, buffers) -> {
+			Real_Volume[] result = deconvolveFrame(imgAmpMat[i], imgPhaseMat[i], psf, style, betaFor(i), buffers, getError ? residuals[i] : null);
+			imgComplex[i] = result[0];
+			imgPhase[i] = result[1];
+		});
+		
+		if (getError)
+			error = combineResiduals(residuals);
+	}
+	
+	// complex version of the Frame_Store deconvolution, the two parts of the result go to results and phaseResults
+	public void deconvolve(ImagePlus imageAmp, ImagePlus imagePhase, Prepared_PSF psf, boolean getError, String style, Frame_Store results, Frame_Store phaseResults) {
+		double[][] residuals = new double[frames][2];
+		forEachFrame((i, buffers) -> {
+			Real_Volume[] result = deconvolveFrame(diu.getVolume(imageAmp, i), diu.getVolume(imagePhase, i), psf, style, betaFor(i), buffers, getError ? residuals[i] : null);
+			results.put(i, result[0]);
+			phaseResults.put(i, result[1]);
+		});
+		
+		if (getError)
+			error = combineResiduals(residuals);
+	}
+	
+	// filter one frame of real data using the given buffers, the result is a new volume. The frame's error totals are
+	// added to residual unless it is null
+	private Real_Volume deconvolveFrame(Real_Volume img, Prepared_PSF psf, float frameBeta, Scratch buffers, double[] residual) {
+		Real_Volume result = tileUtils == null ? filterFrame(img, psf, frameBeta, buffers, residual) : filterTiles(img, psf, frameBeta, residual);
+		diu.linearShift(result, 0, 1);
+		
+		return result;
+	}
+	
+	// the unnormalized result of filtering one frame, used for whole frames and for tiles
+	private Real_Volume filterFrame(Real_Volume img, Prepared_PSF psf, float frameBeta, Scratch buffers, double[] residual) {
+		return filterFrame(img, psf, frameBeta, buffers, residual, null);
+	}
+	
+	// as above, tiles also get the residual g - h*x in space (in residualVolume[0]) so it can be weighted by the blend
+	private Real_Volume filterFrame(Real_Volume img, Prepared_PSF psf, float frameBeta, Scratch buffers, double[] residual, Real_Volume[] residualVolume) {
+		Real_FFT_3D realFFT3D = getRealFFT();
+		Complex_Volume frameComplex = transformFrame(img, buffers);
+		Real_Volume frameReal = buffers.frameReal;
+		if (residual != null)
+			accumulateResidual(frameComplex, psf, frameBeta, residual);
+		if (residualVolume != null)
+			residualVolume[0] = residualInSpace(frameComplex, psf, frameBeta);
+		
+		// perform deconvolution operations
+		applyFilter(frameComplex, psf, frameBeta);
+		realFFT3D.inverse(frameComplex, frameReal);
+		
+		// the amplitude of real data is its absolute value, then format image unless the PSF already shifted it
+		return format(diu.getAmplitudeMat(frameReal), psf);
+	}
+	
+	// filter every tile of a frame with the tile PSF and blend them. The blended frame is normalized like a whole one.
+	// The error totals of a tile are taken in space and weighted by its share of the blend, so every position of the
+	// frame counts once, whatever the tile size
+	private Real_Volume filterTiles(Real_Volume img, Prepared_PSF psf, float frameBeta, double[] residual) {
+		Real_Volume sum = new Real_Volume(slices, height, width);
+		float[] weightSum = new float[height * width];
+		float[] blend = residual == null ? null : tiles.weightSum();
+		forEach(parallelism, tiles.count(), (t, buffers) -> {
+			Real_Volume tile = tiles.extract(img, t);
+			Real_Volume[] tileResidual = residual == null ? null : new Real_Volume[1];
+			Real_Volume result = tileUtils.filterFrame(tile, psf, frameBeta, buffers, null, tileResidual);
+			double total = 0;
+			double remaining = 0;
+			if (residual != null) {
+				if (get_intensity)
+					square(tile.data, tile.data);
+				total = tiles.weightedSquares(tile, t, blend);
+				remaining = tiles.weightedSquares(tileResidual[0], t, blend);
+			}
+			synchronized (sum) {
+				tiles.accumulate(result, t, sum, weightSum);
+				if (residual != null) {
+					residual[0] += total;
+					residual[1] += remaining;
+				}
 			}
-			else {
-				imgPhase[i] = diu.getImMat(imgComplex[i]);
-				imgComplex[i] = diu.getReMat(imgComplex[i]);
+		});
+		tiles.normalize(sum, weightSum);
+		
+		return sum;
+	}
+	
+	// filter one complex frame, returns {amplitude, phase} or {real, imaginary} depending on style
+	private Real_Volume[] deconvolveFrame(Real_Volume imgAmp, Real_Volume imgPhase, Prepared_PSF psf, String style, float frameBeta, Scratch buffers, double[] residual) {
+		Complex_Volume frameComplex = transformFrame(imgAmp, imgPhase, style, buffers);
+		if (residual != null)
+			accumulateResidual(frameComplex, psf, frameBeta, residual);
+		
+		// same deconvolution procedure as above
+		applyFilter(frameComplex, psf, frameBeta);
+		complexInverse(frameComplex, buffers);
+		
+		// put complex matrices back into real matrices and format image
+		if (style == "Polar")
+			return new Real_Volume[] {format(diu.getAmplitudeMat(frameComplex), psf), format(diu.getPhaseMat(frameComplex), psf)};
+		else
+			return new Real_Volume[] {format(diu.getReMat(frameComplex), psf), format(diu.getImMat(frameComplex), psf)};
+	}
+	
+	// transform one frame of real data (squared for intensity maps) into the buffers' half spectrum
+	private Complex_Volume transformFrame(Real_Volume img, Scratch buffers) {
+		Real_FFT_3D realFFT3D = getRealFFT();
+		if (buffers.frameComplex == null || buffers.frameComplex.width != realFFT3D.getSpectrumWidth() || buffers.frameComplex.height != height)
+			buffers.frameComplex = realFFT3D.newSpectrum();
+		if (buffers.frameReal == null || buffers.frameReal.width != width || buffers.frameReal.height != height)
+			buffers.frameReal = new Real_Volume(slices, height, width);
+		
+		if (get_intensity)
+			square(img.data, buffers.frameReal.data);
+		else
+			System.arraycopy(img.data, 0, buffers.frameReal.data, 0, buffers.frameReal.size());
+		realFFT3D.forward(buffers.frameReal, buffers.frameComplex);
+		
+		return buffers.frameComplex;
+	}
+	
+	// transform one complex frame given as amplitude/phase or real/imaginary, depending on style
+	private Complex_Volume transformFrame(Real_Volume imgAmp, Real_Volume imgPhase, String style, Scratch buffers) {
+		if (buffers.frameComplex == null || buffers.frameComplex.width != width)
+			buffers.frameComplex = new Complex_Volume(slices, height, width);
+		Complex_Volume frameComplex = buffers.frameComplex;
+		
+		// construct complex frame based on form of input data
+		if (style == "Polar")
+			loadFrame(frameComplex, imgAmp, imgPhase);
+		else
+			loadFrameRect(frameComplex, imgAmp, imgPhase);
+		
+		if (get_intensity)
+			kernels.apply(Complex_Kernels.Operation.ABS_SQUARED, frameComplex, null, frameComplex);
+		complexForward(frameComplex, buffers);
+		
+		return frameComplex;
+	}
+	
+	// add one frame of real data to a beta sweep. The frame is transformed exactly as deconvolve would transform it
+	public void addToSweep(Beta_Sweep sweep, Real_Volume img) {
+		sweep.addFrame(transformFrame(img, scratch));
+	}
+	
+	public void addToSweep(Beta_Sweep sweep, Real_Volume imgAmp, Real_Volume imgPhase, String style) {
+		sweep.addFrame(transformFrame(imgAmp, imgPhase, style, scratch));
+	}
+	
+	private float betaFor(int frame) {
+		return frameBetas == null ? beta : frameBetas[frame];
+	}
+	
+	// run task for every frame. Tiled frames run one at a time, since their tiles are spread over the workers instead
+	private void forEachFrame(Frame_Task task) {
+		forEach(tileUtils == null ? parallelism : 1, frames, task);
+	}
+	
+	// run task for count items, on workers that each have their own buffers. JTransforms gets a share of its threads per
+	// worker so the transforms inside the workers do not oversubscribe the cores
+	private void forEach(int threads, int count, Frame_Task task) {
+		AtomicInteger done = new AtomicInteger();
+		if (threads == 1 || count == 1) {
+			for (int i = 0; i < count; i++) {
+				task.run(i, scratch);
+				IJ.showProgress(done.incrementAndGet(), count);
 			}
-			imgComplex[i] = diu.formatIFFT(imgComplex[i]);
-			imgPhase[i] = diu.formatIFFT(imgPhase[i]);
-			IJ.showProgress(i+1, frames);
+			return;
 		}
 		
-		if (getError)
-			if (style == "Polar")
-				error = (float) diu.getError(diu.toFFTform(imgComplex, imgPhase), diu.toFFTform(imgAmpMat, imgPhaseMat), diu.toFFTform(psfAmpMat, psfPhaseMat));
-			else
-				error = (float) diu.getError(diu.toFFTformRect(imgComplex, imgPhase), diu.toFFTformRect(imgAmpMat, imgPhaseMat), diu.toFFTformRect(psfAmpMat, psfPhaseMat));
+		int workers = Math.min(threads, count);
+		int fftThreads = ConcurrencyUtils.getNumberOfThreads();
+		ConcurrencyUtils.setNumberOfThreads(Math.max(1, fftThreads / workers));
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		AtomicInteger next = new AtomicInteger();
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int w = 0; w < workers; w++)
+				futures.add(executor.submit(() -> {
+					Scratch buffers = new Scratch();
+					for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+						task.run(i, buffers);
+						IJ.showProgress(done.incrementAndGet(), count);
+					}
+				}));
+			
+			for (Future<?> future : futures)
+				future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Deconvolution was interrupted.", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+			ConcurrencyUtils.setNumberOfThreads(fftThreads);
+		}
+	}
+	
+	// add one transformed frame's error totals {|g|^2, |g - h*x|^2} to residual, where x is the filtered frame (before
+	// its absolute value and rescaling). By Parseval both are sums over the spectrum G, and h*x is G |H|^2 / (|H|^2 + beta),
+	// so the residual is G beta / (|H|^2 + beta). That needs neither the result nor any further transforms
+	private void accumulateResidual(Complex_Volume spectrum, Prepared_PSF psf, float frameBeta, double[] residual) {
+		float[] weights = psf.getColumnWeights();
+		float[] power = psf.getPower().data;
+		float[] data = spectrum.data;
+		double total = 0;
+		double remaining = 0;
+		for (int i = 0; i < data.length / 2; i++) {
+			double g = weights[i % spectrum.width] * ((double)data[2*i] * data[2*i] + (double)data[2*i + 1] * data[2*i + 1]);
+			double denominator = power[2*i] + frameBeta;
+			double left = denominator == 0 ? 1 : frameBeta / denominator;
+			total += g;
+			remaining += g * left * left;
+		}
+		
+		residual[0] += total;
+		residual[1] += remaining;
+	}
+	
+	// g - h*x in space for a transformed frame: the spectrum times beta / (|H|^2 + beta), transformed back. |H|^2 does
+	// not see the PSF's shift, so the residual is in the frame's own order
+	private Real_Volume residualInSpace(Complex_Volume spectrum, Prepared_PSF psf, float frameBeta) {
+		float[] power = psf.getPower().data;
+		Complex_Volume left = spectrum.copy();
+		for (int i = 0; i < left.data.length / 2; i++) {
+			double denominator = power[2*i] + frameBeta;
+			float scale = denominator == 0 ? 1 : (float) (frameBeta / denominator);
+			left.data[2*i] *= scale;
+			left.data[2*i + 1] *= scale;
+		}
+		
+		return getRealFFT().inverse(left);
+	}
+	
+	// relative RMS residual |g - h*x| / |g| over all frames, summed in frame order so it does not depend on the parallelism
+	private float combineResiduals(double[][] residuals) {
+		double total = 0;
+		double remaining = 0;
+		for (double[] frameResidual : residuals) {
+			total += frameResidual[0];
+			remaining += frameResidual[1];
+		}
+		
+		return (float) Math.sqrt(remaining / total);
+	}
+	
+	private synchronized Real_FFT_3D getRealFFT() {
+		if (realFFT3D == null)
+			realFFT3D = FFT_Cache.real(slices, height, width);
+		return realFFT3D;
+	}
+	
+	// complex transforms in place. Without workers the cached plan is used, which FFT_Cache locks; workers use their own
+	private void complexForward(Complex_Volume vol, Scratch buffers) {
+		if (buffers == scratch)
+			FFT_Cache.complexForward(vol);
+		else
+			buffers.getComplexFFT(slices, height, width).complexForward(vol.data);
+	}
+	
+	private void complexInverse(Complex_Volume vol, Scratch buffers) {
+		if (buffers == scratch)
+			FFT_Cache.complexInverse(vol);
+		else
+			buffers.getComplexFFT(slices, height, width).complexInverse(vol.data, true);
+	}
+	
+	// number of filter results that had to be saturated so far, a large count means beta is too small for this PSF
+	public long getSaturationCount() {
+		return kernels.getSaturationCount();
+	}
+	
+	// apply conj(H) / (|H|^2 + beta) to the transformed frame. With one beta the filter is built once per PSF; with a beta
+	// per frame it is fused into the multiplication instead, so frames neither rebuild nor wait on the PSF's cached filter
+	private void applyFilter(Complex_Volume frameComplex, Prepared_PSF psf, float frameBeta) {
+		if (frameBetas == null)
+			kernels.apply(Complex_Kernels.Operation.MULTIPLY, frameComplex, psf.getWienerFilter(frameBeta, kernels), frameComplex);
+		else
+			kernels.apply(Complex_Kernels.Operation.WIENER, frameComplex, psf.getOTF(), frameBeta, frameComplex);
+	}
+	
+	// the getter results are fresh volumes, so a shifted PSF leaves nothing to do
+	private Real_Volume format(Real_Volume vol, Prepared_PSF psf) {
+		return psf.isShifted() ? vol : diu.formatIFFT(vol);
+	}
+	
+	// dest = src^2 for intensity deconvolution of real data
+	private void square(float[] src, float[] dest) {
+		for (int i = 0; i < src.length; i++)
+			dest[i] = src[i] * src[i];
+	}
+	
+	// fill the reusable frame buffer from amplitude/phase data
+	private void loadFrame(Complex_Volume frameComplex, Real_Volume amp, Real_Volume phase) {
+		float[] data = frameComplex.data;
+		for (int i = 0; i < amp.size(); i++) {
+			data[2*i] = amp.data[i] * (float)Math.cos((double)phase.data[i]);
+			data[2*i + 1] = amp.data[i] * (float)Math.sin((double)phase.data[i]);
+		}
+	}
+	
+	// fill the reusable frame buffer from real/imaginary data
+	private void loadFrameRect(Complex_Volume frameComplex, Real_Volume re, Real_Volume im) {
+		float[] data = frameComplex.data;
+		for (int i = 0; i < re.size(); i++) {
+			data[2*i] = re.data[i];
+			data[2*i + 1] = im.data[i];
+		}
+	}
+	
+	// transform buffers reused from frame to frame, one set per worker. Workers also need their own complex plans, since
+	// FloatFFT_3D is not thread safe (see FFT_Cache)
+	private static class Scratch {
+		Complex_Volume frameComplex;
+		Real_Volume frameReal;
+		FloatFFT_3D fft3D;
+		
+		FloatFFT_3D getComplexFFT(int slices, int height, int width) {
+			if (fft3D == null)
+				fft3D = new FloatFFT_3D((long)slices, (long)height, (long)width);
+			return fft3D;
+		}
+	}
+	
+	private interface Frame_Task {
+		void run(int frame, Scratch buffers);
 	}
 }
\ No newline at end of file